@@ -81,3 +81,17 @@ function OPLRegisterJDBC(prefix, jar) {
                  "(Ljava/lang/String;Lilog/opl/IloOplModel;)V",
                  prefix, thisOplModel);
 }
+
+// Register CSV support
+// PREFIX  is the prefix with which the support is registered.
+//         This enables statements PREFIXConnection, PREFIXRead,
+//         PREFIXPublish
+// JAR     is the path to the opldbsupport.jar
+function OPLRegisterCSV(prefix, jar) {
+  __registerJAR(jar);
+
+  IloOplCallJava("ilog.opl.externaldata.csv.CsvConnection",
+                 "register",
+                 "(Ljava/lang/String;Lilog/opl/IloOplModel;)V",
+                 prefix, thisOplModel);
+}
@@ -17,9 +17,22 @@ import java.io.IOException;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.Statement;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
 
 import ilog.concert.IloException;
 import ilog.opl.IloOplElement;
@@ -30,7 +43,12 @@ import ilog.opl.externaldata.DataConnection;
 import ilog.opl.externaldata.DataExporter;
 import ilog.opl.externaldata.DataImporter;
 import ilog.opl.externaldata.InputRowIterator;
+import ilog.opl.externaldata.Options;
 import ilog.opl.externaldata.OutputRowIterator;
+import ilog.opl.externaldata.PartitionedOutputRowIterator;
+import ilog.opl.externaldata.PipelinedOutputRowIterator;
+import ilog.opl.externaldata.PrefetchInputRowIterator;
+import ilog.opl.externaldata.RowBlock;
 
 /** Custom data handler that handles input from and output to databases.
  * The constructor of this class will automatically register data input and output handlers
@@ -50,11 +68,26 @@ import ilog.opl.externaldata.OutputRowIterator;
  * - <code>extra</code> is extra information that is handled differently by different drivers.
  *   For example, for {@link ilog.opl.externaldata.jdbc.JdbcConnection} it specifies extra SQL commands (separated by semicolon)
  *   that are executed before the first <b>write</b> to the connection (if there are no writes
- *   they will not be executed).
+ *   they will not be executed). <code>extra</code> may start with options of the form
+ *   <code>@name=value</code>, see {@link Options}.
  * - <code>query</code> describes how to read data (for {@link ilog.opl.externaldata.jdbc.JdbcConnection} this is an SQL SELECT statement)
  * - <code>update</code> describes how to write data (for {@link ilog.opl.externaldata.jdbc.JdbcConnection} this is an SQL INSERT or UPDATE statement)
  */
 public class DataBaseDataHandler extends CustomOplDataHandler {
+
+	private static boolean traceEnabled = false;
+
+	public static boolean setTraceEnabled(boolean set) {
+		final boolean old = traceEnabled;
+		traceEnabled = set;
+		return old;
+	}
+
+	public static void traceln(String s) {
+		if (traceEnabled)
+			System.err.println(s);
+	}
+
 	/** Info about connections.
 	 * This is the data we get from <code>PREFIXConnection</code> statements in the .dat.
 	 * We don't open connections immediately. Instead we store away the information and
@@ -67,13 +100,52 @@ public class DataBaseDataHandler extends CustomOplDataHandler {
 		public final String connstr;
 		/** Extra SQL commands (second argument to <code>PREFIXConnection</code>). */
 		public final String extra;
+		/** Options given at the beginning of {@link #extra}.
+		 * The remainder of the options are the actual extra commands.
+		 */
+		public final Options options;
 		public ConnectionInfo(String name, String connstr, String extra) {
 			super();
 			this.name = name;
 			this.connstr = connstr;
 			this.extra = extra;
+			this.options = Options.parse(extra);
 		}
 	}
+	/** Option to read ahead this many rows on a background thread while reading.
+	 * See {@link PrefetchInputRowIterator}.
+	 */
+	public static final String OPTION_PREFETCH = "prefetch";
+	/** Option for the number of threads that publish elements concurrently.
+	 * The largest value among the connections used in a publish round applies.
+	 * See {@link Publisher#publishParallel(int, Map, Map, Map)}.
+	 */
+	public static final String OPTION_PUBLISH_THREADS = "publishThreads";
+	/** Option for a publish statement that lists the elements (comma separated) that must
+	 * be written completely before the element is written in parallel publish mode.
+	 * These elements must be published before the element in the .dat file.
+	 */
+	public static final String OPTION_AFTER = "after";
+	/** Option for the number of partitions in which a single element is written.
+	 * The rows of the element are distributed over that many connections that are written in
+	 * parallel. See {@link PartitionedOutputRowIterator}.
+	 */
+	public static final String OPTION_PARTITIONS = "partitions";
+	/** Option with the (1-based, comma separated) positions of the fields by which rows are
+	 * assigned to partitions. Rows with the same values in these fields go to the same partition.
+	 * Without this option, rows are distributed block by block.
+	 */
+	public static final String OPTION_KEY = "key";
+	/** Option for the number of blocks of rows that can wait to be written while the next
+	 * block is extracted from the model. See {@link PipelinedOutputRowIterator}.
+	 * A value of 0 writes rows on the thread that extracts them (except for partitions,
+	 * which are always written by background threads).
+	 */
+	public static final String OPTION_PIPELINE = "pipeline";
+	/** Default for {@link #OPTION_PIPELINE}. */
+	public static final int DEFAULT_PIPELINE = 4;
+	/** Number of rows in the blocks that are handed to a background writer. */
+	private static final int PIPELINE_BLOCK_SIZE = 4096;
 	/** Connection specifications obtained from <code>PREFIXConnection</code> statements. */
 	private final Map<String, ConnectionInfo> specs = new TreeMap<String, ConnectionInfo>();
 	
@@ -85,6 +157,8 @@ public class DataBaseDataHandler extends CustomOplDataHandler {
 			this.conn = conn;
 		}
 	}
+	/** Readers for elements, reused if the same read statement is executed again. */
+	private final DataImporter.ReaderCache readers = new DataImporter.ReaderCache();
 	/** Connections that were opened for reading. */
 	private final Map<String, DbConnection> readConnections = new TreeMap<String, DbConnection>();
 	
@@ -135,6 +209,231 @@ public class DataBaseDataHandler extends CustomOplDataHandler {
 		}
 	}
 	
+	/** Produces the rows of an element that is published. */
+	private interface RowSource {
+		/** Write all rows to <code>output</code> and commit it. */
+		public void writeTo(OutputRowIterator output) throws IOException, IloException;
+	}
+
+	/** The number of connections that may still be opened for writing to one connection string
+	 * in a publish round.
+	 * All {@link Writers} for the same connection string share one budget and use it as their
+	 * monitor. A connection that was opened keeps its share of the budget until the end of the
+	 * round.
+	 */
+	private static final class WriterBudget {
+		/** Maximum number of connections. */
+		private int max;
+		/** Number of connections that may still be opened. */
+		private int available;
+
+		public WriterBudget(int max) {
+			this.max = max;
+			this.available = max;
+		}
+
+		/** Update the maximum number of connections, which may grow if the first connections
+		 * for the connection string did not specify it.
+		 */
+		public synchronized void setMax(int max) {
+			if (max > this.max) {
+				available += max - this.max;
+				this.max = max;
+				notifyAll();
+			}
+		}
+	}
+
+	/** The connections through which elements for one <code>PREFIXConnection</code> are
+	 * written in a publish round.
+	 * Each connection is used by one writer at a time. Connections are opened on demand,
+	 * up to {@link ConnectionFactory#getMaxWriters(ConnectionInfo)} and within the
+	 * {@link WriterBudget} that is shared by all connections with the same connection string,
+	 * and are added to the connection map of the publish round.
+	 */
+	private static final class Writers {
+		private final ConnectionInfo info;
+		/** Same as {@link #info} but without the extra commands. */
+		private final ConnectionInfo workerInfo;
+		private final ConnectionFactory factory;
+		private final Map<String, DbConnection> connectionMap;
+		/** Shared with all writers for the same connection string, guards the fields below. */
+		private final WriterBudget budget;
+		/** Maximum number of connections. */
+		private final int limit;
+		private final ArrayDeque<DataConnection> idle = new ArrayDeque<DataConnection>();
+		/** Number of connections opened so far. */
+		private int opened = 0;
+
+		/** Create the writers and open the first connection, which executes the extra commands.
+		 * Connections that were opened for other connections in the same round are not returned
+		 * before the end of the round, so this fails if <code>budget</code> is exhausted.
+		 */
+		public Writers(ConnectionInfo info, ConnectionFactory factory, Map<String, DbConnection> connectionMap, WriterBudget budget) throws IOException {
+			this.info = info;
+			final String extra = info.extra == null ? "" : info.extra;
+			this.workerInfo = new ConnectionInfo(info.name, info.connstr, extra.substring(0, extra.length() - info.options.getRemainder().length()));
+			this.factory = factory;
+			this.connectionMap = connectionMap;
+			this.budget = budget;
+			this.limit = Math.max(1, factory.getMaxWriters(info));
+			synchronized (budget) {
+				if (budget.available < 1)
+					throw new IOException("connection " + info.name + ": all " + budget.max + " connections for its connection string are used by other connections, increase the pool size");
+				--budget.available;
+			}
+			final DataConnection conn;
+			try {
+				conn = factory.newConnection(info, true);
+			}
+			catch (IOException e) {
+				synchronized (budget) {
+					++budget.available;
+					budget.notifyAll();
+				}
+				throw e;
+			}
+			synchronized (connectionMap) {
+				connectionMap.put(info.name, new DbConnection(info, conn));
+			}
+			idle.push(conn);
+			opened = 1;
+		}
+
+		/** Get up to <code>n</code> connections for exclusive use, opening new ones or waiting
+		 * if necessary.
+		 * All connections are obtained at once, so that writers that need several connections
+		 * cannot block each other. Connections of other writers for the same connection string
+		 * are only released at the end of the round, so fewer than <code>n</code> connections
+		 * are returned if no more can be opened within the limits.
+		 */
+		private DataConnection[] borrow(int n) throws IOException {
+			int have = 0;
+			final int first;
+			final DataConnection[] conns;
+			synchronized (budget) {
+				try {
+					while (true) {
+						final int openable = Math.min(limit - opened, budget.available);
+						n = Math.min(n, opened + openable);
+						if (idle.size() + openable >= n)
+							break;
+						// Some of our own connections are in use, wait for them.
+						budget.wait();
+					}
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("interrupted while waiting for connection " + info.name);
+				}
+				conns = new DataConnection[n];
+				while (have < n && !idle.isEmpty())
+					conns[have++] = idle.pop();
+				first = opened + 1;
+				opened += n - have;
+				budget.available -= n - have;
+			}
+			int created = 0;
+			try {
+				for (/* nothing */; have < n; ++have, ++created) {
+					final DataConnection conn = factory.newConnection(workerInfo, true);
+					synchronized (connectionMap) {
+						connectionMap.put(info.name + '#' + (first + created), new DbConnection(info, conn));
+					}
+					conns[have] = conn;
+				}
+				return conns;
+			}
+			catch (IOException e) {
+				synchronized (budget) {
+					// Connections that were opened are in the connection map and are closed with it.
+					opened -= n - have;
+					budget.available += n - have;
+					for (int i = 0; i < have; ++i)
+						idle.push(conns[i]);
+					budget.notifyAll();
+				}
+				throw e;
+			}
+		}
+
+		private void giveBack(DataConnection[] conns) {
+			synchronized (budget) {
+				for (DataConnection conn : conns)
+					idle.push(conn);
+				budget.notifyAll();
+			}
+		}
+
+		/** Write an element.
+		 * If the element is to be written in partitions then its rows are distributed over several
+		 * connections that are written in parallel, see {@link PartitionedOutputRowIterator}.
+		 * Otherwise, if <code>pipelined</code> is <code>true</code>, the rows are written by a
+		 * background thread while they are produced, see {@link PipelinedOutputRowIterator}.
+		 */
+		public void write(PublishInfo elem, RowSource rows, boolean pipelined) throws IOException, IloException {
+			final Options options = elem.options.with(Options.parse(elem.spec));
+			final int depth = options.getInt(OPTION_PIPELINE, DEFAULT_PIPELINE);
+			final int partitions = Math.max(1, options.getInt(OPTION_PARTITIONS, 1));
+			final DataConnection[] conns = borrow(partitions);
+			if (conns.length < partitions)
+				System.err.println("WARNING: connection " + info.name + " has only " + conns.length + " writers, writing " + elem.elem + " in " + conns.length + " instead of " + partitions + " partitions");
+			try {
+				System.out.println("Writing " + elem.elem + " as " + elem.spec + (conns.length > 1 ? " in " + conns.length + " partitions" : ""));
+				final OutputRowIterator[] outputs = new OutputRowIterator[conns.length];
+				OutputRowIterator output = null;
+				try {
+					for (int i = 0; i < conns.length; ++i)
+						outputs[i] = conns[i].openOutputRows(elem.spec);
+					if (conns.length > 1)
+						output = new PartitionedOutputRowIterator(outputs, getKeyColumns(options), PIPELINE_BLOCK_SIZE, Math.max(1, depth));
+					else if (pipelined && depth > 0)
+						output = new PipelinedOutputRowIterator(outputs[0], PIPELINE_BLOCK_SIZE, depth);
+					else
+						output = outputs[0];
+					rows.writeTo(output);
+					if (output instanceof PartitionedOutputRowIterator)
+						traceln("DataBaseDataHandler: wrote " + elem.elem + " in " + ((PartitionedOutputRowIterator)output).getStatistics());
+					else if (output instanceof PipelinedOutputRowIterator)
+						traceln("DataBaseDataHandler: wrote " + elem.elem + ": " + ((PipelinedOutputRowIterator)output).getStatistics());
+				}
+				finally {
+					if (output != null)
+						output.close();
+					else {
+						for (OutputRowIterator o : outputs) {
+							if (o != null)
+								o.close();
+						}
+					}
+				}
+			}
+			finally {
+				giveBack(conns);
+			}
+		}
+
+		/** Get the (0-based) key columns from the 1-based positions in {@link #OPTION_KEY}. */
+		private static int[] getKeyColumns(Options options) throws IOException {
+			final String key = options.getString(OPTION_KEY, "").trim();
+			if (key.length() == 0)
+				return new int[0];
+			final String[] fields = key.split(",");
+			final int[] columns = new int[fields.length];
+			for (int i = 0; i < fields.length; ++i) {
+				try {
+					columns[i] = Integer.parseInt(fields[i].trim()) - 1;
+				}
+				catch (NumberFormatException e) {
+					columns[i] = -1;
+				}
+				if (columns[i] < 0)
+					throw new IOException("invalid key column " + fields[i]);
+			}
+			return columns;
+		}
+	}
+
 	/** Custom data publisher that writes data to the database. */
 	private static final class Publisher extends CustomOplResultPublisher {
 		private final String prefix;
@@ -161,35 +460,41 @@ public class DataBaseDataHandler extends CustomOplDataHandler {
 			final Map<String, DbConnection> connectionMap = new TreeMap<String, DbConnection>();
 			try {
 				try {
+					int threads = 1;
+					for (PublishInfo info : publishList)
+						threads = Math.max(threads, info.options.getInt(OPTION_PUBLISH_THREADS, 1));
+					for (PublishInfo info : publishList) {
+						if (threads > 1 && factory.getMaxWriters(info) < 1) {
+							System.err.println("WARNING: connection " + info.name + " does not support parallel publish, publishing sequentially");
+							threads = 1;
+						}
+					}
+					final Map<String, Writers> writers = new TreeMap<String, Writers>();
+					final Map<String, WriterBudget> budgets = new TreeMap<String, WriterBudget>();
+					if (threads > 1)
+						publishParallel(threads, writers, budgets, connectionMap);
 					while (!publishList.isEmpty()) {
 						final PublishInfo info = publishList.removeFirst();
 						final IloOplElement elem = model.getElement(info.elem);
 						if (elem == null)
-							throw new IloException("no element " + info.elem);					
+							throw new IloException("no element " + info.elem);
 						try {
-							System.out.println("Writing " + info.elem + " as " + info.spec);
-							final DbConnection conn = getOrMakeConnection(info.name, factory, true, connectionSpecs, connectionMap);
-							OutputRowIterator output = conn.conn.openOutputRows(info.spec);
-							try {
-								DataExporter.exportElement(model, elem, output);
-								output.close();
-							}
-							catch (IOException e) {
-								reportAndMap(e);
-							}
-							finally {
-								try { output.close(); }
-								catch (IOException e) {
-									System.err.println(e.getMessage());
-									e.printStackTrace();
-									// ignored
+							getWriters(info, writers, budgets, connectionMap).write(info, new RowSource() {
+								@Override
+								public void writeTo(OutputRowIterator output) throws IOException, IloException {
+									DataExporter.exportElement(model, elem, output);
 								}
-							}
+							}, true);
 						}
 						catch (IOException e) {
 							reportAndMap(e);
 						}
 					}
+					// All elements were written, so make the changes permanent.
+					for (DbConnection conn : connectionMap.values()) {
+						try { conn.conn.commit(); }
+						catch (IOException e) { reportAndMap(e); }
+					}
 					clearConnectionMap(connectionMap);
 				}
 				finally {
@@ -202,6 +507,15 @@ public class DataBaseDataHandler extends CustomOplDataHandler {
 				reportAndMap(e);
 			}
 			finally {
+				// In case of error connectionMap is not empty here. Attempt to undo the
+				// changes but ignore exceptions.
+				for (DbConnection conn : connectionMap.values()) {
+					try { conn.conn.rollback(); }
+					catch (IOException ignored) {
+						System.err.println(ignored.getMessage());
+						ignored.printStackTrace();
+					}
+				}
 				// Even in case of error attempt to close all connections but ignore exceptions.
 				// Note that if there is no error then connectionMap is already empty at this
 				// point and the function call is a noop.
@@ -212,6 +526,158 @@ public class DataBaseDataHandler extends CustomOplDataHandler {
 					System.err.println(ignored.getMessage());
 					ignored.printStackTrace();
 				}
+				try {
+					factory.close();
+				}
+				catch (IOException ignored) {
+					System.err.println(ignored.getMessage());
+					ignored.printStackTrace();
+				}
+			}
+		}
+
+		/** Get the writers for the connection of <code>info</code>, creating them if necessary.
+		 * Creating writers opens the first connection and executes the extra commands.
+		 */
+		private Writers getWriters(PublishInfo info, Map<String, Writers> writers, Map<String, WriterBudget> budgets, Map<String, DbConnection> connectionMap) throws IloException, IOException {
+			Writers w = writers.get(info.name);
+			if (w == null) {
+				final ConnectionInfo spec = connectionSpecs.get(info.name);
+				if (spec == null)
+					throw new IloException("no connection " + info.name);
+				final int max = factory.getMaxSharedWriters(spec);
+				WriterBudget budget = budgets.get(spec.connstr);
+				if (budget == null) {
+					budget = new WriterBudget(max);
+					budgets.put(spec.connstr, budget);
+				}
+				else
+					budget.setMax(max);
+				w = new Writers(spec, factory, connectionMap, budget);
+				writers.put(info.name, w);
+			}
+			return w;
+		}
+
+		/** Publish all elements with up to <code>threads</code> concurrent writers.
+		 * Elements are extracted from the model on the calling thread, in order, since OPL
+		 * objects must not be accessed concurrently. Each element is written as soon as it is
+		 * extracted and all elements listed in its {@link #OPTION_AFTER} option are written.
+		 * Writers use separate connections. The first connection for a <code>PREFIXConnection</code>
+		 * executes the extra commands before anything is written, further connections are opened
+		 * without them. The factory limits the number of connections per <code>PREFIXConnection</code>
+		 * and per connection string, elements beyond that limit wait for a connection.
+		 * All connections that were opened are added to <code>connectionMap</code>.
+		 */
+		private void publishParallel(int threads, Map<String, Writers> writers, Map<String, WriterBudget> budgets, Map<String, DbConnection> connectionMap) throws IloException, IOException {
+			final ExecutorService pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					final Thread t = new Thread(r, "opldbsupport-publish");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			// Completion of the writes of each element, in publish order, and by element name.
+			final List<CompletableFuture<Void>> pending = new ArrayList<CompletableFuture<Void>>();
+			final Map<String, CompletableFuture<Void>> written = new TreeMap<String, CompletableFuture<Void>>();
+			// Snapshots are kept in memory until they are written, so extract at most as many
+			// elements ahead as there are threads to write them.
+			final Semaphore snapshots = new Semaphore(threads);
+			try {
+				while (!publishList.isEmpty()) {
+					final PublishInfo info = publishList.removeFirst();
+					final IloOplElement elem = model.getElement(info.elem);
+					if (elem == null)
+						throw new IloException("no element " + info.elem);
+					final List<CompletableFuture<Void>> after = new ArrayList<CompletableFuture<Void>>();
+					for (String name : Options.parse(info.spec).getString(OPTION_AFTER, "").split(",")) {
+						name = name.trim();
+						if (name.length() == 0)
+							continue;
+						final CompletableFuture<Void> f = written.get(name);
+						if (f == null)
+							throw new IloException("element " + info.elem + " must be published after " + name + " but " + name + " is not published before it");
+						after.add(f);
+					}
+					final Writers target = getWriters(info, writers, budgets, connectionMap);
+					try {
+						snapshots.acquire();
+					}
+					catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new InterruptedIOException("interrupted while waiting to publish " + info.elem);
+					}
+					CompletableFuture<Void> done = null;
+					try {
+						System.out.println("Extracting " + info.elem);
+						final List<RowBlock> rows = DataExporter.snapshotElement(model, elem);
+						done = CompletableFuture.allOf(after.toArray(new CompletableFuture<?>[after.size()])).thenRunAsync(new Runnable() {
+							@Override
+							public void run() {
+								try {
+									target.write(info, new RowSource() {
+										@Override
+										public void writeTo(OutputRowIterator output) throws IOException {
+											DataExporter.writeSnapshot(rows, output);
+										}
+									}, false);
+								}
+								catch (IOException e) {
+									throw new CompletionException(e);
+								}
+								catch (IloException e) {
+									throw new CompletionException(e);
+								}
+							}
+						}, pool);
+					}
+					finally {
+						if (done == null)
+							snapshots.release();
+					}
+					// Also release the snapshot if writing fails or is skipped since an element
+					// that must be written before failed.
+					done.whenComplete(new BiConsumer<Void, Throwable>() {
+						@Override
+						public void accept(Void v, Throwable t) {
+							snapshots.release();
+						}
+					});
+					pending.add(done);
+					written.put(info.elem, done);
+				}
+				// Wait for all writers, even if one fails, and report the first failure.
+				Throwable failure = null;
+				for (CompletableFuture<Void> f : pending) {
+					try {
+						f.join();
+					}
+					catch (CompletionException e) {
+						if (failure == null)
+							failure = e.getCause() != null ? e.getCause() : e;
+					}
+					catch (CancellationException e) {
+						if (failure == null)
+							failure = e;
+					}
+				}
+				if (failure instanceof IOException)
+					throw (IOException)failure;
+				if (failure != null)
+					throw new IOException(failure);
+			}
+			finally {
+				// Connections must not be used by writers any more when they are committed or
+				// rolled back, so wait for the writers in case of error, too.
+				pool.shutdown();
+				try {
+					while (!pool.awaitTermination(1, TimeUnit.MINUTES))
+						System.err.println("Waiting for " + prefix + " publish threads to finish");
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
 			}
 		}
 
@@ -242,6 +708,24 @@ public class DataBaseDataHandler extends CustomOplDataHandler {
 	/** Factory method to be implemented by concrete connections. */
 	public interface ConnectionFactory {
 		public DataConnection newConnection(ConnectionInfo info, boolean write) throws IOException;
+		/** Release resources that the factory keeps across connections.
+		 * This is invoked when reading data is finished and nothing is to be published,
+		 * and at the end of each publish round. Connections that are still open must
+		 * remain usable.
+		 */
+		public default void close() throws IOException {}
+		/** Get the number of connections for <code>info</code> that may be open for writing at
+		 * the same time when elements are published in parallel.
+		 * Different connections created by this factory must be usable from different threads
+		 * at the same time.
+		 * @return The maximum number of connections, 0 if parallel publish is not supported.
+		 */
+		public default int getMaxWriters(ConnectionInfo info) { return 0; }
+		/** Get the number of connections that may be open for writing at the same time for all
+		 * connections with the same connection string as <code>info</code>.
+		 * This bounds the sum of {@link #getMaxWriters(ConnectionInfo)} over these connections.
+		 */
+		public default int getMaxSharedWriters(ConnectionInfo info) throws IOException { return Integer.MAX_VALUE; }
 	}
 
 	private final ConnectionFactory factory;
@@ -293,6 +777,16 @@ public class DataBaseDataHandler extends CustomOplDataHandler {
 	@Override
 	public void closeConnections() throws IloException {
 		clearConnectionMap(readConnections);
+		// If something is to be published then the factory may keep resources that
+		// can be reused by the publisher.
+		if (publish.isEmpty()) {
+			try {
+				factory.close();
+			}
+			catch (IOException e) {
+				reportAndMap(e);
+			}
+		}
 	}
 	@Override
 	public void handleConnection(String name, String connstr, String extra) throws IloException {
@@ -347,9 +841,15 @@ public class DataBaseDataHandler extends CustomOplDataHandler {
 			// to setup a tuple reader.
 			try {
 				DbConnection conn = getOrMakeConnection(connId, factory, false, specs, readConnections);
-				InputRowIterator input = conn.conn.openInputRows(spec);
+				// Placeholders in the query are bound to the values of already loaded elements.
+				final Object[] parameters = DataImporter.getParameters(opl, Options.parse(spec));
+				InputRowIterator input = conn.conn.openInputRows(spec, parameters);
+				final int prefetch = conn.options.getInt(OPTION_PREFETCH, 0);
+				if (prefetch > 0)
+					input = new PrefetchInputRowIterator(input, prefetch);
 				try {
-					DataImporter.readElement(elem, getDataHandler(), input);
+					// Connection and query determine the column layout, so they identify the reader.
+					readers.readElement(connId + '\0' + spec, elem, getDataHandler(), input);
 				}
 				catch (IOException e) {
 					reportAndMap(e);
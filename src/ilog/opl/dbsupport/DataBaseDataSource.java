@@ -15,7 +15,6 @@ package ilog.opl.dbsupport;
 
 import java.io.IOException;
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.Iterator;
@@ -32,7 +31,9 @@ import ilog.opl.IloOplModel;
 import ilog.opl.externaldata.DataConnection;
 import ilog.opl.externaldata.DataImporter;
 import ilog.opl.externaldata.InputRowIterator;
+import ilog.opl.externaldata.Options;
 import ilog.opl.externaldata.jdbc.JdbcConnection;
+import ilog.opl.externaldata.jdbc.JdbcConnectionPool;
 
 /** A custom data source that reads data from a datasource using JDBC.
  * For this the database input must be configured using a tuple like this:
@@ -49,8 +50,11 @@ import ilog.opl.externaldata.jdbc.JdbcConnection;
  * - <code>connstr</code> the JDBC connection string.
  * - <code>data</code> is a list of string of the form ELEM=SQL where ELEM is the name of
  *   the model element to be filled and SQL is the command to fill with.
- * - <code>extra</code> is a list of SQL statements that are executed right after creation
- *   of the connection.
+ * - <code>extra</code> is a list of SQL statements that are executed right after the
+ *   connection was obtained.
+ *
+ * Connections are taken from the {@link JdbcConnectionPool} for <code>connstr</code>, so
+ * they are shared with {@link DataBaseDataHandler} instances that use the same connection string.
  *
  * Note that this is standalone and not related to {@link DataBaseDataHandler}.
  */
@@ -97,7 +101,8 @@ public class DataBaseDataSource extends IloCustomOplDataSource {
 			final String connstr = tuple.getStringValue(getTupleField(tuple, FIELD_CONNSTR, true));
 			DataConnection conn = null;
 			if (connstr.startsWith("jdbc:")) {
-				Connection jdbc = DriverManager.getConnection(connstr);
+				final JdbcConnectionPool pool = JdbcConnectionPool.get(connstr, JdbcConnectionPool.DEFAULT_IDLE_TIMEOUT);
+				Connection jdbc = pool.acquire();
 				try {
 					if (extra != null) {
 						for (Iterator<?> it = extra.iterator(); it.hasNext(); /* nothing */) {
@@ -110,12 +115,12 @@ public class DataBaseDataSource extends IloCustomOplDataSource {
 							}
 						}
 					}
-					conn = new JdbcConnection(jdbc);
+					conn = new JdbcConnection(jdbc, Options.EMPTY, pool);
 					jdbc = null;
 				}
 				finally {
 					if (jdbc != null)
-						jdbc.close();
+						pool.release(jdbc);
 				}
 			}
 			else {
@@ -131,7 +136,7 @@ public class DataBaseDataSource extends IloCustomOplDataSource {
 						throw new IllegalArgumentException("invalid argument " + data[0]);
 					final String name = data[0];
 					final String spec = data[1];
-					final InputRowIterator input = conn.openInputRows(spec);
+					final InputRowIterator input = conn.openInputRows(spec, DataImporter.getParameters(model, Options.parse(spec)));
 					try {
 						DataImporter.readElement(model.getModelDefinition().getElementDefinition(name), getDataHandler(), input);
 					}
@@ -0,0 +1,46 @@
+//   Copyright 2020 IBM Corporation
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+package ilog.opl.externaldata;
+
+import ilog.opl.IloOplDataHandler;
+
+import java.io.IOException;
+
+/** Interface to fill an OPL element with data from a block of rows.
+ * This allows collections to be read with {@link InputRowIterator#nextRows(RowBlock)}
+ * instead of field by field.
+ */
+interface BlockAssign extends Assign {
+	/** Whether {@link #makeBlock(InputRowIterator, int)} needs the first row.
+	 * If this returns <code>true</code> then the first row is read with {@link InputRowIterator#next()}
+	 * and assigned field by field before the block is created, and only the remaining
+	 * rows are read in blocks.
+	 */
+	public default boolean needsFirstRow() { return false; }
+	/** Create a block that holds all fields that are required by this instance.
+	 * @param input    The input from which the block will be filled. If {@link #needsFirstRow()}
+	 *                 returns <code>true</code> then this is positioned on the first row.
+	 * @param capacity The number of rows in the block.
+	 * @return The new block.
+	 * @throws IOException if there was any sort of problem.
+	 */
+	public RowBlock makeBlock(InputRowIterator input, int capacity) throws IOException;
+	/** Fill the current element with data.
+	 * @param handler The factory class through which the current element is filled.
+	 * @param block   The block that holds the data.
+	 * @param row     The row in <code>block</code> from which to fill.
+	 * @throws IOException if there was any sort of problem.
+	 */
+	public void assign(IloOplDataHandler handler, RowBlock block, int row) throws IOException;
+}
@@ -23,8 +23,28 @@ import java.io.IOException;
 public interface DataConnection {
 	/** Construct an input data instance from <code>command</code>. */
 	public InputRowIterator openInputRows(String command) throws IOException;
+	/** Construct an input data instance from <code>command</code> with bound parameters.
+	 * The parameters are {@link Integer}, {@link Double} or {@link String} instances that
+	 * replace the placeholders in <code>command</code> in order. Connections that do not
+	 * support placeholders only accept an empty parameter list.
+	 */
+	public default InputRowIterator openInputRows(String command, Object[] parameters) throws IOException {
+		if (parameters.length > 0)
+			throw new IOException("connection does not support parameters in " + command);
+		return openInputRows(command);
+	}
 	/** Construct an output data instance from <code>command</code>. */
 	public OutputRowIterator openOutputRows(String command) throws IOException;
+	/** Make permanent all changes done through this connection.
+	 * This is invoked once at the end of a publish round, after all elements were
+	 * written successfully. The default implementation does nothing, which is right for
+	 * connections that write data immediately.
+	 */
+	public default void commit() throws IOException {}
+	/** Discard all changes done through this connection since the last commit, if possible.
+	 * This is invoked if publishing any element failed. The default implementation does nothing.
+	 */
+	public default void rollback() throws IOException {}
 	/** Close this connection. */
 	public void close() throws IOException;
 }
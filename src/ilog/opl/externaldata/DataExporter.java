@@ -14,8 +14,10 @@
 package ilog.opl.externaldata;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Vector;
 
 import ilog.concert.IloDiscreteDataCollection;
@@ -38,76 +40,135 @@ import ilog.opl.IloOplModel;
  */
 public class DataExporter {
 	
-	/** Interface for generic writing of data to databases. */
+	/** Number of rows that are extracted from an element before they are written. */
+	private static final int BLOCK_SIZE = 1024;
+
+	/** Interface for generic writing of data to databases.
+	 * Writers extract data into a {@link RowBlock} that is written once it is full.
+	 */
 	private interface Writer {
-		public void write(Object data, OutputRowIterator output) throws IOException;
+		/** Create a block that can hold the fields produced by this writer. */
+		public RowBlock makeBlock(int capacity);
+		/** Store <code>data</code> in row <code>row</code> of <code>block</code>. */
+		public void write(Object data, RowBlock block, int row) throws IOException;
 	}
 
 	/** Writer for plain <code>int</code> values. */
 	private static final Writer INT_WRITER = new Writer() {
 		@Override
-		public void write(Object data, OutputRowIterator output) throws IOException {
-			output.setInt(0, (Integer)data);
+		public RowBlock makeBlock(int capacity) { return new RowBlock(new RowBlock.Kind[]{ RowBlock.Kind.INT }, capacity); }
+		@Override
+		public void write(Object data, RowBlock block, int row) throws IOException {
+			block.ints[0][row] = (Integer)data;
 		}
 	};
 	/** Writer for plain <code>double</code> values. */
 	private static final Writer NUM_WRITER = new Writer() {
 		@Override
-		public void write(Object data, OutputRowIterator output) throws IOException {
-			output.setDouble(0, (Double)data);
+		public RowBlock makeBlock(int capacity) { return new RowBlock(new RowBlock.Kind[]{ RowBlock.Kind.NUM }, capacity); }
+		@Override
+		public void write(Object data, RowBlock block, int row) throws IOException {
+			block.nums[0][row] = (Double)data;
 		}
 	};
 	/** Writer for plain string values. */
 	private static final Writer STRING_WRITER = new Writer() {
 		@Override
-		public void write(Object data, OutputRowIterator output) throws IOException {
-			output.setString(0, (String)data);
+		public RowBlock makeBlock(int capacity) { return new RowBlock(new RowBlock.Kind[]{ RowBlock.Kind.STR }, capacity); }
+		@Override
+		public void write(Object data, RowBlock block, int row) throws IOException {
+			block.strings[0][row] = (String)data;
 		}
 	};
-	/** Writer for tuple values. */
+	/** Writer for tuple values.
+	 * Nested tuples are flattened according to a plan that is computed once in the
+	 * constructor. Writing a row does not allocate any Java objects besides what
+	 * OPL returns for nested tuples.
+	 */
 	private static class TupleWriter implements Writer {
-		/** Stack for context while writing nested tuples. */
-		private static final class Stack {
-			public final int tupleIdx;
-			public final IloTuple tuple;
-			public Stack(int tupleIdx, IloTuple tuple) {
-				super();
-				this.tupleIdx = tupleIdx;
-				this.tuple = tuple;
-			}
-		}
-		private final Vector<Stack> stack = new Vector<Stack>();
-		private final TupleIO.TupleSpec[] fields;
+		/** The action for each step in the plan. */
+		private final TupleIO.TupleSpec.Action[] actions;
+		/** For each step the index of the field in the current (nested) tuple. */
+		private final int[] fieldIdx;
+		/** For each step that writes a field the slot in the block. */
+		private final int[] slotIdx;
+		/** Number of slots in a row. */
+		private final int slots;
+		/** The tuples that are currently traversed (index is nesting depth). */
+		private final IloTuple[] stack;
 		
 		public TupleWriter(IloTuple def) {
 			final Vector<TupleIO.TupleSpec> v = new Vector<TupleIO.TupleSpec>();
 			TupleIO.makeTupleSpec(def, v, "");
-			fields = v.toArray(new TupleIO.TupleSpec[v.size()]);
+			final int steps = v.size();
+			actions = new TupleIO.TupleSpec.Action[steps];
+			fieldIdx = new int[steps];
+			slotIdx = new int[steps];
+			// Field index in the enclosing tuple, per nesting depth.
+			final int[] next = new int[steps + 1];
+			int depth = 0;
+			int maxDepth = 0;
+			int slot = 0;
+			for (int i = 0; i < steps; ++i) {
+				actions[i] = v.get(i).action;
+				switch (actions[i]) {
+				case INT:
+				case NUM:
+				case STR:
+					fieldIdx[i] = next[depth]++;
+					slotIdx[i] = slot++;
+					break;
+				case START:
+					fieldIdx[i] = next[depth]++;
+					++depth;
+					next[depth] = 0;
+					maxDepth = Math.max(maxDepth, depth);
+					break;
+				case END:
+					--depth;
+					break;
+				}
+			}
+			slots = slot;
+			stack = new IloTuple[maxDepth + 1];
+		}
+
+		@Override
+		public RowBlock makeBlock(int capacity) {
+			final RowBlock.Kind[] kinds = new RowBlock.Kind[slots];
+			for (int i = 0; i < actions.length; ++i) {
+				switch (actions[i]) {
+				case INT: kinds[slotIdx[i]] = RowBlock.Kind.INT; break;
+				case NUM: kinds[slotIdx[i]] = RowBlock.Kind.NUM; break;
+				case STR: kinds[slotIdx[i]] = RowBlock.Kind.STR; break;
+				case START: break;
+				case END: break;
+				}
+			}
+			return new RowBlock(kinds, capacity);
 		}
 		
 		@Override
-		public void write(Object data, OutputRowIterator output) throws IOException {
-			stack.clear();
+		public void write(Object data, RowBlock block, int row) throws IOException {
 			IloTuple t = (IloTuple)data;
-			int paramIdx = 0;
-			int tupleIdx = 0;
-			for (TupleIO.TupleSpec field : fields) {
-				switch (field.action) {
-				case INT: output.setInt(paramIdx++, t.getIntValue(tupleIdx++)); break;
-				case NUM: output.setDouble(paramIdx++, t.getNumValue(tupleIdx++)); break;
-				case STR: output.setString(paramIdx++, t.getStringValue(tupleIdx++)); break;
+			int depth = 0;
+			stack[0] = t;
+			for (int i = 0; i < actions.length; ++i) {
+				switch (actions[i]) {
+				case INT: block.ints[slotIdx[i]][row] = t.getIntValue(fieldIdx[i]); break;
+				case NUM: block.nums[slotIdx[i]][row] = t.getNumValue(fieldIdx[i]); break;
+				case STR: block.strings[slotIdx[i]][row] = t.getStringValue(fieldIdx[i]); break;
 				case START:
-					stack.add(new Stack(tupleIdx, t));
-					t = t.makeTupleValue(tupleIdx);
-					tupleIdx = 0;
+					t = t.makeTupleValue(fieldIdx[i]);
+					stack[++depth] = t;
 					break;
 				case END:
-					Stack s = stack.remove(stack.size() - 1);
-					t = s.tuple;
-					tupleIdx = s.tupleIdx + 1;
+					stack[depth] = null;
+					t = stack[--depth];
 					break;
 				}
 			}
+			stack[0] = null;
 		}
 	}
 	
@@ -127,98 +188,138 @@ public class DataExporter {
 				throw new IloException("unsupported index type");
 		}
 	}
-	
-	private static abstract class IndexIterator<E> implements Iterator<E> {
-		private final Iterator<?> idx;
-		public IndexIterator(Iterator<?> idx) { this.idx = idx; }
+
+	/** Extracts the rows of an element into blocks. */
+	private static abstract class Extractor {
+		/** Create a block that can hold the rows produced by this instance. */
+		public abstract RowBlock makeBlock(int capacity);
+		/** Fill <code>block</code> with the next rows.
+		 * @param block The block to fill. Rows previously stored in the block are dropped.
+		 * @return The number of rows stored in <code>block</code>, 0 if there are no more rows.
+		 */
+		public abstract int fill(RowBlock block) throws IOException, IloException;
+	}
+
+	/** Extract rows from an iterator of values. */
+	private static final class IteratorExtractor extends Extractor {
+		private final Writer writer;
+		private final Iterator<?> data;
+		public IteratorExtractor(Writer writer, Iterator<?> data) {
+			this.writer = writer;
+			this.data = data;
+		}
 		@Override
-		public boolean hasNext() { return idx.hasNext(); }
+		public RowBlock makeBlock(int capacity) { return writer.makeBlock(capacity); }
 		@Override
-		public E next() {
-			try {
-				return map(idx.next());
-			}
-			catch (IloException e) {
-				throw new RuntimeException(e.getMessage());
-			}
+		public int fill(RowBlock block) throws IOException {
+			block.clear();
+			while (!block.isFull() && data.hasNext())
+				writer.write(data.next(), block, block.size++);
+			return block.size;
 		}
-		protected abstract E map(Object key) throws IloException;
+	}
+
+	/** Extract rows from a one-dimensional map.
+	 * Each row holds the value for one key of the map's index set.
+	 */
+	private static abstract class MapExtractor extends Extractor {
+		protected final IndexType indexType;
+		private final Iterator<?> keys;
+		private final RowBlock.Kind kind;
+		public MapExtractor(IloDiscreteDataCollection idx, RowBlock.Kind kind) throws IloException {
+			this.indexType = IndexType.findType(idx);
+			this.keys = idx.iterator();
+			this.kind = kind;
+		}
+		@Override
+		public RowBlock makeBlock(int capacity) { return new RowBlock(new RowBlock.Kind[]{ kind }, capacity); }
 		@Override
-		public void remove() {
-			throw new UnsupportedOperationException("remove");
-		}			
+		public int fill(RowBlock block) throws IOException, IloException {
+			block.clear();
+			while (!block.isFull() && keys.hasNext())
+				extract(keys.next(), block, block.size++);
+			return block.size;
+		}
+		/** Store the value for <code>key</code> in row <code>row</code> of <code>block</code>. */
+		protected abstract void extract(Object key, RowBlock block, int row) throws IOException, IloException;
 	}
-	
-	private static final class IntMapIterator extends IndexIterator<Object> {
-		private final IndexType indexType;
+
+	/** Extract values of an <code>int</code> map without boxing them. */
+	private static final class IntMapExtractor extends MapExtractor {
 		private final IloIntMap data;
-		public IntMapIterator(IloIntMap data, IloDiscreteDataCollection idx) throws IloException {
-			super(idx.iterator());
-			this.indexType = IndexType.findType(idx);
+		public IntMapExtractor(IloIntMap data, IloDiscreteDataCollection idx) throws IloException {
+			super(idx, RowBlock.Kind.INT);
 			this.data = data;
 		}
-		protected Object map(Object key) throws IloException {
+		@Override
+		protected void extract(Object key, RowBlock block, int row) throws IloException {
+			final int[] ints = block.ints[0];
 			switch (indexType) {
-			case INT: return data.get((Integer)key);
-			case NUM: return data.get((Double)key);
-			case STRING: return data.get((String)key);
-			case TUPLE: return data.get((IloTuple)key);
+			case INT: ints[row] = data.get((Integer)key); break;
+			case NUM: ints[row] = data.get((Double)key); break;
+			case STRING: ints[row] = data.get((String)key); break;
+			case TUPLE: ints[row] = data.get((IloTuple)key); break;
 			}
-			return null; // not reached
 		}
 	}
-	
-	private static final class NumMapIterator extends IndexIterator<Object> {
-		private final IndexType indexType;
+
+	/** Extract values of a <code>double</code> map without boxing them. */
+	private static final class NumMapExtractor extends MapExtractor {
 		private final IloNumMap data;
-		public NumMapIterator(IloNumMap data, IloDiscreteDataCollection idx) throws IloException {
-			super(idx.iterator());
-			this.indexType = IndexType.findType(idx);
+		public NumMapExtractor(IloNumMap data, IloDiscreteDataCollection idx) throws IloException {
+			super(idx, RowBlock.Kind.NUM);
 			this.data = data;
 		}
-		protected Object map(Object key) throws IloException {
+		@Override
+		protected void extract(Object key, RowBlock block, int row) throws IloException {
+			final double[] nums = block.nums[0];
 			switch (indexType) {
-			case INT: return data.get((Integer)key);
-			case NUM: return data.get((Double)key);
-			case STRING: return data.get((String)key);
-			case TUPLE: return data.get((IloTuple)key);
+			case INT: nums[row] = data.get((Integer)key); break;
+			case NUM: nums[row] = data.get((Double)key); break;
+			case STRING: nums[row] = data.get((String)key); break;
+			case TUPLE: nums[row] = data.get((IloTuple)key); break;
 			}
-			return null; // not reached
 		}
 	}
-	
-	private static final class StringMapIterator extends IndexIterator<Object> {
-		private final IndexType indexType;
+
+	/** Extract values of a string map. */
+	private static final class StringMapExtractor extends MapExtractor {
 		private final IloSymbolMap data;
-		public StringMapIterator(IloSymbolMap data, IloDiscreteDataCollection idx) throws IloException {
-			super(idx.iterator());
-			this.indexType = IndexType.findType(idx);
+		public StringMapExtractor(IloSymbolMap data, IloDiscreteDataCollection idx) throws IloException {
+			super(idx, RowBlock.Kind.STR);
 			this.data = data;
 		}
-		protected Object map(Object key) throws IloException {
+		@Override
+		protected void extract(Object key, RowBlock block, int row) throws IloException {
+			final String[] strings = block.strings[0];
 			switch (indexType) {
-			case INT: return data.get((Integer)key);
-			case NUM: return data.get((Double)key);
-			case STRING: return data.get((String)key);
-			case TUPLE: return data.get((IloTuple)key);
+			case INT: strings[row] = data.get((Integer)key); break;
+			case NUM: strings[row] = data.get((Double)key); break;
+			case STRING: strings[row] = data.get((String)key); break;
+			case TUPLE: strings[row] = data.get((IloTuple)key); break;
 			}
-			return null; // not reached
 		}
 	}
-	
-	private static final class TupleMapIterator extends IndexIterator<Object> {
-		private final IndexType indexType;
+
+	/** Extract values of a tuple map.
+	 * All values are fetched into the same tuple buffer.
+	 */
+	private static final class TupleMapExtractor extends MapExtractor {
 		private final IloTupleMap data;
 		private final IloMapIndexArray array;
 		private final IloTuple buffer;
-		public TupleMapIterator(IloTupleMap data, IloDiscreteDataCollection idx, IloMapIndexArray array, IloTuple buffer) throws IloException {
-			super(idx.iterator());
-			this.indexType = IndexType.findType(idx);
+		private final TupleWriter writer;
+		public TupleMapExtractor(IloTupleMap data, IloDiscreteDataCollection idx, IloMapIndexArray array, IloTuple buffer) throws IloException {
+			super(idx, RowBlock.Kind.STR);
 			this.data = data;
 			this.array = array;
 			this.buffer = buffer;
+			this.writer = new TupleWriter(buffer);
 		}
-		protected Object map(Object key) throws IloException {
+		@Override
+		public RowBlock makeBlock(int capacity) { return writer.makeBlock(capacity); }
+		@Override
+		protected void extract(Object key, RowBlock block, int row) throws IOException, IloException {
 			array.clear();
 			switch (indexType) {
 			case INT: array.add((Integer)key); break;
@@ -227,58 +328,46 @@ public class DataExporter {
 			case TUPLE: array.add((IloTuple)key); break;
 			}
 			data.getAt(array, buffer);
-			return buffer;
+			writer.write(buffer, block, row);
 		}
 	}
 
-	
-	public static void exportElement(IloOplModel model, IloOplElement elem, OutputRowIterator output) throws IOException, IloException {
-		Writer writer = null;
-		Iterator<?> data = null;
+	/** Create an extractor for the rows of <code>elem</code>.
+	 * @return The new extractor or <code>null</code> if <code>elem</code> is an empty collection.
+	 */
+	private static Extractor makeExtractor(IloOplModel model, IloOplElement elem) throws IloException {
 		if (elem.getElementType().equals(IloOplElementType.Type.INT)) {
-			writer = INT_WRITER;
-			data = Collections.singleton(elem.asInt()).iterator();
+			return new IteratorExtractor(INT_WRITER, Collections.singleton(elem.asInt()).iterator());
 		}
 		else if (elem.getElementType().equals(IloOplElementType.Type.NUM)) {
-			writer = NUM_WRITER;
-			data = Collections.singleton(elem.asNum()).iterator();
+			return new IteratorExtractor(NUM_WRITER, Collections.singleton(elem.asNum()).iterator());
 		}
 		else if (elem.getElementType().equals(IloOplElementType.Type.STRING)) {
-			writer = STRING_WRITER;
-			data = Collections.singleton(elem.asString()).iterator();
+			return new IteratorExtractor(STRING_WRITER, Collections.singleton(elem.asString()).iterator());
 		}
 		else if (elem.getElementType().equals(IloOplElementType.Type.TUPLE)) {
-			writer = new TupleWriter(elem.asTuple());
-			data = Collections.singleton(elem.asTuple()).iterator();
+			return new IteratorExtractor(new TupleWriter(elem.asTuple()), Collections.singleton(elem.asTuple()).iterator());
 		}
 		else if (elem.getElementType().equals(IloOplElementType.Type.SET_INT)) {
-			writer = INT_WRITER;
-			data = elem.asIntSet().iterator();
+			return new IteratorExtractor(INT_WRITER, elem.asIntSet().iterator());
 		}
 		else if (elem.getElementType().equals(IloOplElementType.Type.SET_NUM)) {
-			writer = NUM_WRITER;
-			data = elem.asNumSet().iterator();
+			return new IteratorExtractor(NUM_WRITER, elem.asNumSet().iterator());
 		}
 		else if (elem.getElementType().equals(IloOplElementType.Type.SET_SYMBOL)) {
-			writer = STRING_WRITER;
-			data = elem.asSymbolSet().iterator();
+			return new IteratorExtractor(STRING_WRITER, elem.asSymbolSet().iterator());
 		}
 		else if (elem.getElementType().equals(IloOplElementType.Type.SET_TUPLE)) {
 			final IloTupleSet ts = elem.asTupleSet();
-			if (ts.getSize() > 0)
-				writer = new TupleWriter(ts.makeFirst());
-			else
-				writer = null;
-			data = elem.asTupleSet().iterator();
+			if (ts.getSize() == 0)
+				return null;
+			return new IteratorExtractor(new TupleWriter(ts.makeFirst()), ts.iterator());
 		}
 		else if (elem.getElementType().equals(IloOplElementType.Type.MAP_INT)) {
 			final IloIntMap map = elem.asIntMap();
 			final int dim = map.getNbDim();
 			switch (dim) {
-			case 1:
-				writer = INT_WRITER;
-				data = new IntMapIterator(map, map.makeMapIndexer().get(0));
-				break;
+			case 1: return new IntMapExtractor(map, map.makeMapIndexer().get(0));
 			default: throw new IloException("cannot output element " + elem.getName() + " of dimension " + dim);
 			}
 		}
@@ -286,10 +375,7 @@ public class DataExporter {
 			final IloNumMap map = elem.asNumMap();
 			final int dim = map.getNbDim();
 			switch (dim) {
-			case 1:
-				writer = NUM_WRITER;
-				data = new NumMapIterator(map, map.makeMapIndexer().get(0));
-				break;
+			case 1: return new NumMapExtractor(map, map.makeMapIndexer().get(0));
 			default: throw new IloException("cannot output element " + elem.getName() + " of dimension " + dim);
 			}
 		}
@@ -297,10 +383,7 @@ public class DataExporter {
 			final IloSymbolMap map = elem.asSymbolMap();
 			final int dim = map.getNbDim();
 			switch (dim) {
-			case 1:
-				writer = STRING_WRITER;
-				data = new StringMapIterator(map, map.makeMapIndexer().get(0));
-				break;
+			case 1: return new StringMapExtractor(map, map.makeMapIndexer().get(0));
 			default: throw new IloException("cannot output element " + elem.getName() + " of dimension " + dim);
 			}
 		}
@@ -310,27 +393,52 @@ public class DataExporter {
 			switch (dim) {
 			case 1:
 				final IloDiscreteDataCollection idx = map.makeMapIndexer().get(0);
-				final IloTuple buffer = map.makeTuple();
-				if (idx.getSize() > 0) {  
-					writer = new TupleWriter(buffer);
-				}
-				else {
-					// empty array
-					writer = null;
-				}
-				data = new TupleMapIterator(map, idx, IloOplFactory.getOplFactoryFrom(model).mapIndexArray(1), buffer);
-				break;
+				if (idx.getSize() == 0)
+					return null; // empty array
+				return new TupleMapExtractor(map, idx, IloOplFactory.getOplFactoryFrom(model).mapIndexArray(1), map.makeTuple());
 			default: throw new IloException("cannot output element " + elem.getName() + " of dimension " + dim);
 			}
 		}
 		else
 			throw new IloException("cannot output element " + elem.getName() + " of type " + elem.getElementType());
-		
+	}
+
+	public static void exportElement(IloOplModel model, IloOplElement elem, OutputRowIterator output) throws IOException, IloException {
+		final Extractor extractor = makeExtractor(model, elem);
+
 		// Now publish the element.
-		while (data.hasNext()) {
-			writer.write(data.next(), output);
-			output.completeRow();
+		// Rows are extracted into a block and written block by block.
+		if (extractor != null) {
+			final RowBlock block = extractor.makeBlock(BLOCK_SIZE);
+			while (extractor.fill(block) > 0)
+				output.writeRows(block);
+			block.clear();
+		}
+		output.commit();
+	}
+
+	/** Extract all rows of <code>elem</code>.
+	 * The rows do not refer to any OPL objects, so they can be written with
+	 * {@link #writeSnapshot(List, OutputRowIterator)} from any thread.
+	 * @return The rows of <code>elem</code>, in blocks.
+	 */
+	public static List<RowBlock> snapshotElement(IloOplModel model, IloOplElement elem) throws IOException, IloException {
+		final List<RowBlock> blocks = new ArrayList<RowBlock>();
+		final Extractor extractor = makeExtractor(model, elem);
+		if (extractor != null) {
+			RowBlock block = extractor.makeBlock(BLOCK_SIZE);
+			while (extractor.fill(block) > 0) {
+				blocks.add(block);
+				block = block.makeEmptyCopy();
+			}
 		}
+		return blocks;
+	}
+
+	/** Write rows obtained from {@link #snapshotElement(IloOplModel, IloOplElement)} and commit <code>output</code>. */
+	public static void writeSnapshot(List<RowBlock> blocks, OutputRowIterator output) throws IOException {
+		for (RowBlock block : blocks)
+			output.writeRows(block);
 		output.commit();
 	}
 }
@@ -17,19 +17,30 @@ import ilog.concert.IloException;
 import ilog.opl.IloOplDataHandler;
 import ilog.opl.IloOplArrayDefinition;
 import ilog.opl.IloOplElementDefinition;
+import ilog.opl.IloOplElement;
 import ilog.opl.IloOplElementDefinitionType;
+import ilog.opl.IloOplElementType;
+import ilog.opl.IloOplModel;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 
 /** Class to read OPL elements.
  * The implementation is based on the interfaces in this package that provide a
  * row-oriented view on the input medium.
  */
 public class DataImporter {
+	/** Number of rows read at once when filling collections. */
+	private static final int BLOCK_SIZE = 1024;
+
 	/** Read a single scalar.
 	 * Base class for reading scalar values.
 	 */
-	private static abstract class ValueReader implements Assign, Reader {
+	private static abstract class ValueReader implements BlockAssign, Reader {
+		private final RowBlock.Kind kind;
+		protected ValueReader(RowBlock.Kind kind) { this.kind = kind; }
 		@Override
 		public void read(IloOplElementDefinition elem, IloOplDataHandler handler, InputRowIterator input) throws IOException {
 			handler.restartElement(elem.getName());
@@ -38,34 +49,50 @@ public class DataImporter {
 			assign(handler, input);
 			handler.endElement();
 		}
+		@Override
+		public RowBlock makeBlock(InputRowIterator input, int capacity) {
+			return new RowBlock(new RowBlock.Kind[]{ kind }, capacity);
+		}
 		public abstract void assign(IloOplDataHandler handler, InputRowIterator input) throws IOException;
 	}
 
 	/** Read a flat <code>int</code>. */
-	private static final ValueReader INT_READER = new ValueReader() {
+	private static final ValueReader INT_READER = new ValueReader(RowBlock.Kind.INT) {
 
 		@Override
 		public void assign(IloOplDataHandler handler, InputRowIterator input) throws IOException {
 			handler.addIntItem(input.getInt(0));
 		}
+		@Override
+		public void assign(IloOplDataHandler handler, RowBlock block, int row) {
+			handler.addIntItem(block.ints[0][row]);
+		}
 
 	};
 	/** Read a flat <code>double</code>. */
-	private static final ValueReader NUM_READER = new ValueReader() {
+	private static final ValueReader NUM_READER = new ValueReader(RowBlock.Kind.NUM) {
 
 		@Override
 		public void assign(IloOplDataHandler handler, InputRowIterator input) throws IOException {
 			handler.addNumItem(input.getDouble(0));
 		}
+		@Override
+		public void assign(IloOplDataHandler handler, RowBlock block, int row) {
+			handler.addNumItem(block.nums[0][row]);
+		}
 
 	};
 	/** Read a flat string. */
-	private static final ValueReader STRING_READER = new ValueReader() {
+	private static final ValueReader STRING_READER = new ValueReader(RowBlock.Kind.STR) {
 
 		@Override
 		public void assign(IloOplDataHandler handler, InputRowIterator input) throws IOException {
 			handler.addStringItem(input.getString(0));
 		}
+		@Override
+		public void assign(IloOplDataHandler handler, RowBlock block, int row) {
+			handler.addStringItem(block.strings[0][row]);
+		}
 
 	};
 
@@ -89,7 +116,9 @@ public class DataImporter {
 
 	}
 
-	/** Read a collection where each row in the result set defines one element in the collection. */
+	/** Read a collection where each row in the result set defines one element in the collection.
+	 * If the elements can be assigned from blocks of rows then rows are read block by block.
+	 */
 	private static final class CollectionReader implements Reader {
 		private final Assign assign;
 		private final CollectionHelper helper;
@@ -102,8 +131,27 @@ public class DataImporter {
 		public final void read(IloOplElementDefinition elem, IloOplDataHandler handler, InputRowIterator input) throws IOException {
 			handler.restartElement(elem.getName());
 			helper.start(handler);
-			while (input.next())
-				assign.assign(handler, input);
+			if (assign instanceof BlockAssign) {
+				final BlockAssign blockAssign = (BlockAssign)assign;
+				boolean empty = false;
+				if (blockAssign.needsFirstRow()) {
+					empty = !input.next();
+					if (!empty)
+						blockAssign.assign(handler, input);
+				}
+				if (!empty) {
+					final RowBlock block = blockAssign.makeBlock(input, BLOCK_SIZE);
+					int rows;
+					while ((rows = input.nextRows(block)) > 0) {
+						for (int r = 0; r < rows; ++r)
+							blockAssign.assign(handler, block, r);
+					}
+				}
+			}
+			else {
+				while (input.next())
+					assign.assign(handler, input);
+			}
 			helper.end(handler);
 			handler.endElement();
 		}
@@ -117,44 +165,144 @@ public class DataImporter {
 
 	/** Fill a collection from a row.
 	 * This is used to fill two-dimensional collections.
+	 * When rows are read in blocks, the number of columns is taken from the first row,
+	 * so all rows must have (at least) as many columns as the first one. Additional
+	 * columns in later rows are ignored.
 	 */
-	private static abstract class RowAssign implements Assign {
+	private static final class RowAssign implements BlockAssign {
 		private final CollectionHelper helper;
-		protected abstract void doAssign(IloOplDataHandler handler, InputRowIterator input, int col) throws IOException;
-		protected RowAssign(CollectionHelper helper) { this.helper = helper; }
+		private final RowBlock.Kind kind;
+		public RowAssign(CollectionHelper helper, RowBlock.Kind kind) {
+			this.helper = helper;
+			this.kind = kind;
+		}
 		@Override
-		public final void assign(IloOplDataHandler handler, InputRowIterator input) throws IOException {
+		public void assign(IloOplDataHandler handler, InputRowIterator input) throws IOException {
 			helper.start(handler);
 			final int cols = input.getColumnCount();
-			for (int i = 0; i < cols; ++i)
-				doAssign(handler, input, i);
+			for (int i = 0; i < cols; ++i) {
+				switch (kind) {
+				case INT: handler.addIntItem(input.getInt(i)); break;
+				case NUM: handler.addNumItem(input.getDouble(i)); break;
+				case STR: handler.addStringItem(input.getString(i)); break;
+				}
+			}
 			helper.end(handler);
-		}		
-	}
-	private static final Assign INTROWSET_READER = new RowAssign(CollectionHelper.SET) {
-		@Override
-		protected void doAssign(IloOplDataHandler handler, InputRowIterator input, int col) throws IOException { handler.addIntItem(input.getInt(col)); }
-	};
-	private static final Assign NUMROWSET_READER = new RowAssign(CollectionHelper.SET) {
-		@Override
-		protected void doAssign(IloOplDataHandler handler, InputRowIterator input, int col) throws IOException { handler.addNumItem(input.getDouble(col)); }
-	};
-	private static final Assign STRINGROWSET_READER = new RowAssign(CollectionHelper.SET) {
-		@Override
-		protected void doAssign(IloOplDataHandler handler, InputRowIterator input, int col) throws IOException { handler.addStringItem(input.getString(col)); }
-	};
-	private static final Assign INTROWARRAY_READER = new RowAssign(CollectionHelper.ARRAY) {
+		}
 		@Override
-		protected void doAssign(IloOplDataHandler handler, InputRowIterator input, int col) throws IOException { handler.addIntItem(input.getInt(col)); }
-	};
-	private static final Assign NUMROWARRAY_READER = new RowAssign(CollectionHelper.ARRAY) {
+		public boolean needsFirstRow() { return true; }
 		@Override
-		protected void doAssign(IloOplDataHandler handler, InputRowIterator input, int col) throws IOException { handler.addNumItem(input.getDouble(col)); }
-	};
-	private static final Assign STRINGROWARRAY_READER = new RowAssign(CollectionHelper.ARRAY) {
+		public RowBlock makeBlock(InputRowIterator input, int capacity) throws IOException {
+			// The column count is only defined once there is a current row.
+			final RowBlock.Kind[] kinds = new RowBlock.Kind[input.getColumnCount()];
+			Arrays.fill(kinds, kind);
+			return new RowBlock(kinds, capacity);
+		}
 		@Override
-		protected void doAssign(IloOplDataHandler handler, InputRowIterator input, int col) throws IOException { handler.addStringItem(input.getString(col)); }
-	};
+		public void assign(IloOplDataHandler handler, RowBlock block, int row) {
+			helper.start(handler);
+			final int cols = block.getSlotCount();
+			switch (kind) {
+			case INT:
+				for (int i = 0; i < cols; ++i)
+					handler.addIntItem(block.ints[i][row]);
+				break;
+			case NUM:
+				for (int i = 0; i < cols; ++i)
+					handler.addNumItem(block.nums[i][row]);
+				break;
+			case STR:
+				for (int i = 0; i < cols; ++i)
+					handler.addStringItem(block.strings[i][row]);
+				break;
+			}
+			helper.end(handler);
+		}
+	}
+	private static final Assign INTROWSET_READER = new RowAssign(CollectionHelper.SET, RowBlock.Kind.INT);
+	private static final Assign NUMROWSET_READER = new RowAssign(CollectionHelper.SET, RowBlock.Kind.NUM);
+	private static final Assign STRINGROWSET_READER = new RowAssign(CollectionHelper.SET, RowBlock.Kind.STR);
+	private static final Assign INTROWARRAY_READER = new RowAssign(CollectionHelper.ARRAY, RowBlock.Kind.INT);
+	private static final Assign NUMROWARRAY_READER = new RowAssign(CollectionHelper.ARRAY, RowBlock.Kind.NUM);
+	private static final Assign STRINGROWARRAY_READER = new RowAssign(CollectionHelper.ARRAY, RowBlock.Kind.STR);
+
+	/** Cache for readers.
+	 * Creating a reader walks the definition of the element and, for tuples, matches
+	 * tuple fields against columns. A cache allows to do this only once for each read
+	 * statement. The caller must make sure that the same key is used only for inputs
+	 * that have the same column layout (for example, by using connection and query as key).
+	 * Instances of this class are not thread-safe.
+	 */
+	public static final class ReaderCache {
+		private final Map<String, Reader> readers = new HashMap<String, Reader>();
+		private long hits = 0;
+		private long misses = 0;
+
+		/** Fill <code>elem</code> from <code>input</code>, using the cached reader for <code>key</code>
+		 * if there is one.
+		 * @param key      Identifies the element definition and the column layout of <code>input</code>.
+		 * @param elem     The element to be filled.
+		 * @param handler  The factory that stores actual data into <code>elem</code>.
+		 * @param input    Row-oriented view on input data.
+		 * @throws IOException if there is a problem.
+		 * @throws IloException if there is a problem.
+		 */
+		public void readElement(String key, IloOplElementDefinition elem, IloOplDataHandler handler, InputRowIterator input) throws IOException, IloException {
+			final String fullKey = elem.getName() + '\0' + key;
+			Reader reader = readers.get(fullKey);
+			if (reader == null) {
+				++misses;
+				reader = makeReader(elem, input);
+				readers.put(fullKey, reader);
+			}
+			else
+				++hits;
+			reader.read(elem, handler, input);
+		}
+
+		/** Get the number of reads that used a cached reader. */
+		public long getHits() { return hits; }
+		/** Get the number of reads that had to create a reader. */
+		public long getMisses() { return misses; }
+		/** Drop all cached readers. */
+		public void clear() { readers.clear(); }
+	}
+
+	/** Option that lists the OPL elements whose values are bound to the placeholders of a query.
+	 * The value is a comma separated list of names of scalar <code>int</code>, <code>float</code>
+	 * or <code>string</code> elements, in the order of the placeholders.
+	 */
+	public static final String OPTION_BIND = "bind";
+
+	/** Get the values for the placeholders of a query.
+	 * @param model   The model from which to take values.
+	 * @param options The options of the query.
+	 * @return The values of the elements listed in {@link #OPTION_BIND}, empty if there is no such option.
+	 * @throws IloException if an element does not exist or is not a scalar.
+	 */
+	public static Object[] getParameters(IloOplModel model, Options options) throws IloException {
+		final String bind = options.getString(OPTION_BIND, "").trim();
+		if (bind.length() == 0)
+			return new Object[0];
+		final String[] names = bind.split(",");
+		final Object[] values = new Object[names.length];
+		for (int i = 0; i < names.length; ++i) {
+			final String name = names[i].trim();
+			final IloOplElement elem = model.getElement(name);
+			if (elem == null)
+				throw new IloException("no element " + name + " to bind");
+			final IloOplElementType.Type type = elem.getElementType();
+			if (type.equals(IloOplElementType.Type.INT))
+				values[i] = Integer.valueOf(elem.asInt());
+			else if (type.equals(IloOplElementType.Type.NUM))
+				values[i] = Double.valueOf(elem.asNum());
+			else if (type.equals(IloOplElementType.Type.STRING))
+				values[i] = elem.asString();
+			else
+				throw new IloException("cannot bind element " + name + " of type " + type);
+		}
+		return values;
+	}
 
 	/** Fill <code>elem</code> from <code>input</code>.
 	 * @param elem     The element to be filled.
@@ -164,6 +312,14 @@ public class DataImporter {
 	 * @throws IloException if there is a problem.
 	 */
 	public static void readElement(IloOplElementDefinition elem, IloOplDataHandler handler, InputRowIterator input) throws IOException, IloException {
+		makeReader(elem, input).read(elem, handler, input);
+	}
+
+	/** Create a reader that fills <code>elem</code> from <code>input</code>.
+	 * The reader only depends on the definition of <code>elem</code> and the column
+	 * layout of <code>input</code>, so it can be reused for other inputs with the same layout.
+	 */
+	private static Reader makeReader(IloOplElementDefinition elem, InputRowIterator input) throws IOException, IloException {
 		Reader reader = null;
 		final IloOplElementDefinitionType.Type type = elem.getElementDefinitionType();
 		if (type.equals(IloOplElementDefinitionType.Type.INTEGER))
@@ -257,7 +413,8 @@ public class DataImporter {
 			throw new IloException("cannot read element " + elem.getName() + " of type " + elem.getElementDefinitionType() + " from database");
 		}
 
-		// Now read the result set into the OPL element.
-		reader.read(elem, handler, input);
+		if (reader == null)
+			throw new IloException("cannot read element " + elem.getName() + " from database");
+		return reader;
 	}
 }
@@ -55,6 +55,37 @@ public interface InputRowIterator {
 	 */
 	public int getColumnCount() throws IOException;
 	
+	/** Read a block of rows.
+	 * Moves to the next input row, stores the fields described by the slots of <code>block</code>
+	 * into <code>block</code> and repeats this until there are no more rows or <code>block</code>
+	 * is full. The rows previously stored in <code>block</code> are dropped.
+	 * After this function returned, the current row is the last row stored in <code>block</code>.
+	 *
+	 * The default implementation is based on {@link #next()} and the various <code>get</code>
+	 * functions. Implementations should override this if they can provide data more efficiently.
+	 * @param block The block to fill.
+	 * @return The number of rows stored in <code>block</code>. This is 0 if and only if there are
+	 *         no more rows.
+	 * @throws IOException if an error occurs.
+	 */
+	public default int nextRows(RowBlock block) throws IOException {
+		block.clear();
+		final int slots = block.getSlotCount();
+		while (block.size < block.capacity && next()) {
+			final int row = block.size;
+			for (int s = 0; s < slots; ++s) {
+				final int col = block.columns[s];
+				switch (block.kinds[s]) {
+				case INT: block.ints[s][row] = getInt(col); break;
+				case NUM: block.nums[s][row] = getDouble(col); break;
+				case STR: block.strings[s][row] = getString(col); break;
+				}
+			}
+			++block.size;
+		}
+		return block.size;
+	}
+
 	/** Release all resources allocated for this iterator. */
 	public void close() throws IOException;
 
@@ -0,0 +1,165 @@
+//   Copyright 2020 IBM Corporation
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+package ilog.opl.externaldata;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/** Options that tune the behavior of connections and statements.
+ * Options are specified as a semicolon separated list of items of the form
+ * <code>@name=value</code> at the very beginning of a specification string.
+ * For example, in
+ * <pre>
+ *    @batchRows=5000;@batchBytes=1000000;DELETE FROM results
+ * </pre>
+ * the options are <code>batchRows</code> and <code>batchBytes</code> and the
+ * remainder is <code>DELETE FROM results</code>. Parsing stops at the first item
+ * that does not start with <code>@</code>, so the remainder is passed on verbatim.
+ * An option without a value (<code>@name</code>) is equivalent to <code>@name=true</code>.
+ */
+public final class Options {
+	/** Character that marks an option. */
+	public static final char MARKER = '@';
+	/** Separator between options. */
+	public static final char SEPARATOR = ';';
+	/** The empty option set. */
+	public static final Options EMPTY = new Options(Collections.<String, String>emptyMap(), "");
+
+	private final Map<String, String> values;
+	private final String remainder;
+
+	private Options(Map<String, String> values, String remainder) {
+		this.values = values;
+		this.remainder = remainder;
+	}
+
+	/** Parse the options at the beginning of <code>spec</code>.
+	 * @param spec The specification to parse. May be <code>null</code>.
+	 * @return The options found in <code>spec</code>.
+	 * @throws IllegalArgumentException if an option has an empty name.
+	 */
+	public static Options parse(String spec) {
+		if (spec == null)
+			return EMPTY;
+		final Map<String, String> values = new TreeMap<String, String>();
+		int pos = 0;
+		while (true) {
+			// Skip leading white space.
+			while (pos < spec.length() && Character.isWhitespace(spec.charAt(pos)))
+				++pos;
+			if (pos >= spec.length() || spec.charAt(pos) != MARKER)
+				break;
+			int end = spec.indexOf(SEPARATOR, pos);
+			if (end < 0)
+				end = spec.length();
+			final String item = spec.substring(pos + 1, end).trim();
+			final int eq = item.indexOf('=');
+			final String name = (eq < 0 ? item : item.substring(0, eq)).trim();
+			final String value = eq < 0 ? "true" : item.substring(eq + 1).trim();
+			if (name.length() == 0)
+				throw new IllegalArgumentException("empty option name in " + spec);
+			values.put(name, value);
+			pos = end + 1;
+		}
+		if (values.isEmpty())
+			return new Options(Collections.<String, String>emptyMap(), spec);
+		return new Options(values, pos < spec.length() ? spec.substring(pos) : "");
+	}
+
+	/** Get the text that follows the options. */
+	public String getRemainder() { return remainder; }
+
+	/** Test whether there are any options. */
+	public boolean isEmpty() { return values.isEmpty(); }
+
+	/** Test whether option <code>name</code> was specified. */
+	public boolean contains(String name) { return values.containsKey(name); }
+
+	/** Create a new option set in which the options in <code>overrides</code> replace the options
+	 * in this instance. The remainder of the new instance is the remainder of <code>overrides</code>.
+	 * @param overrides The options that take precedence.
+	 * @return The merged options.
+	 */
+	public Options with(Options overrides) {
+		if (overrides.isEmpty())
+			return new Options(values, overrides.remainder);
+		if (values.isEmpty())
+			return overrides;
+		final Map<String, String> merged = new TreeMap<String, String>(values);
+		merged.putAll(overrides.values);
+		return new Options(merged, overrides.remainder);
+	}
+
+	/** Get a string option.
+	 * @param name The name of the option.
+	 * @param def  The value to return if the option was not specified.
+	 * @return The value of the option or <code>def</code>.
+	 */
+	public String getString(String name, String def) {
+		final String value = values.get(name);
+		return value == null ? def : value;
+	}
+
+	/** Get an integer option.
+	 * @param name The name of the option.
+	 * @param def  The value to return if the option was not specified.
+	 * @return The value of the option or <code>def</code>.
+	 * @throws IllegalArgumentException if the value is not an integer.
+	 */
+	public int getInt(String name, int def) {
+		final long value = getLong(name, def);
+		if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("value for option " + name + " is out of range");
+		return (int)value;
+	}
+
+	/** Get a long integer option.
+	 * @param name The name of the option.
+	 * @param def  The value to return if the option was not specified.
+	 * @return The value of the option or <code>def</code>.
+	 * @throws IllegalArgumentException if the value is not an integer.
+	 */
+	public long getLong(String name, long def) {
+		final String value = values.get(name);
+		if (value == null)
+			return def;
+		try {
+			return Long.parseLong(value);
+		}
+		catch (NumberFormatException e) {
+			throw new IllegalArgumentException("invalid integer " + value + " for option " + name);
+		}
+	}
+
+	/** Get a boolean option.
+	 * @param name The name of the option.
+	 * @param def  The value to return if the option was not specified.
+	 * @return The value of the option or <code>def</code>.
+	 * @throws IllegalArgumentException if the value is neither <code>true</code> nor <code>false</code>.
+	 */
+	public boolean getBoolean(String name, boolean def) {
+		final String value = values.get(name);
+		if (value == null)
+			return def;
+		if (value.equalsIgnoreCase("true"))
+			return true;
+		if (value.equalsIgnoreCase("false"))
+			return false;
+		throw new IllegalArgumentException("invalid boolean " + value + " for option " + name);
+	}
+
+	@Override
+	public String toString() { return values.toString(); }
+}
@@ -43,6 +43,30 @@ public interface OutputRowIterator {
 	 * @throws IOException if anything goes wrong.
 	 */
 	public void completeRow() throws IOException;
+	/** Write a block of rows.
+	 * For each row in <code>block</code> this sets the fields given by the slots of the block
+	 * (the column of a slot is the field index) and then completes the row.
+	 *
+	 * The default implementation is based on the various <code>set</code> functions and
+	 * {@link #completeRow()}. Implementations should override this if they can store
+	 * data more efficiently.
+	 * @param block The rows to write.
+	 * @throws IOException if anything goes wrong.
+	 */
+	public default void writeRows(RowBlock block) throws IOException {
+		final int slots = block.getSlotCount();
+		for (int row = 0; row < block.size; ++row) {
+			for (int s = 0; s < slots; ++s) {
+				final int col = block.columns[s];
+				switch (block.kinds[s]) {
+				case INT: setInt(col, block.ints[s][row]); break;
+				case NUM: setDouble(col, block.nums[s][row]); break;
+				case STR: setString(col, block.strings[s][row]); break;
+				}
+			}
+			completeRow();
+		}
+	}
 	/** Commit all changes made so far.
 	 * This also advances the iterator to the next row.
 	 * @throws IOException if anything goes wrong.
@@ -0,0 +1,229 @@
+//   Copyright 2020 IBM Corporation
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+package ilog.opl.externaldata;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+/** Output iterator that distributes rows over several other iterators.
+ * Each wrapped iterator (partition) is written through a {@link PipelinedOutputRowIterator},
+ * so the partitions are written in parallel by background threads. A row goes to the
+ * partition given by a hash of its key columns, so rows with the same key always end up
+ * in the same partition. If there are no key columns then rows are distributed block by
+ * block in turn.
+ *
+ * Rows should be written with {@link #writeRows(RowBlock)}. Rows written field by field
+ * are passed on directly to their partition on the calling thread. The two ways must
+ * not be mixed.
+ *
+ * The wrapped iterators are only ever used by one thread at a time, so they do not have
+ * to be thread-safe.
+ */
+public class PartitionedOutputRowIterator implements OutputRowIterator {
+	private final PipelinedOutputRowIterator[] partitions;
+	/** Field indices of the key columns. */
+	private final int[] keyColumns;
+	/** Per key column the slot in the blocks, <code>null</code> until the first block was seen. */
+	private int[] keySlots = null;
+	/** Next partition if rows are distributed without a key. */
+	private int next = 0;
+	/** Whether rows are written with {@link #writeRows(RowBlock)}. */
+	private boolean blockMode = false;
+
+	/* The current row if rows are written field by field. */
+	private final ArrayList<Integer> rowColumns = new ArrayList<Integer>();
+	private final ArrayList<Object> rowValues = new ArrayList<Object>();
+
+	/** Create a new iterator.
+	 * @param outputs    The iterators to which rows are distributed. The new instance takes ownership.
+	 * @param keyColumns The (0-based) field indices of the key. If empty then rows are
+	 *                   distributed without looking at their values.
+	 * @param blockSize  The number of rows that are passed to a partition at once.
+	 * @param depth      The number of blocks per partition that can wait to be written.
+	 */
+	public PartitionedOutputRowIterator(OutputRowIterator[] outputs, int[] keyColumns, int blockSize, int depth) {
+		if (outputs.length == 0)
+			throw new IllegalArgumentException("no partitions");
+		this.partitions = new PipelinedOutputRowIterator[outputs.length];
+		for (int i = 0; i < outputs.length; ++i)
+			partitions[i] = new PipelinedOutputRowIterator(outputs[i], blockSize, depth);
+		this.keyColumns = keyColumns.clone();
+	}
+
+	/** Get the number of partitions. */
+	public int getPartitionCount() { return partitions.length; }
+
+	@Override
+	public void setInt(int index, int value) throws IOException {
+		setValue(index, Integer.valueOf(value));
+	}
+	@Override
+	public void setDouble(int index, double value) throws IOException {
+		setValue(index, Double.valueOf(value));
+	}
+	@Override
+	public void setString(int index, String value) throws IOException {
+		setValue(index, value);
+	}
+	private void setValue(int index, Object value) throws IOException {
+		if (blockMode)
+			throw new IOException("cannot write single fields after writing blocks");
+		rowColumns.add(index);
+		rowValues.add(value);
+	}
+	@Override
+	public void completeRow() throws IOException {
+		if (blockMode)
+			throw new IOException("cannot write single fields after writing blocks");
+		int hash = 0;
+		if (keyColumns.length > 0) {
+			for (int k : keyColumns) {
+				final int i = rowColumns.lastIndexOf(k);
+				if (i < 0)
+					throw new IOException("key column " + k + " was not set");
+				final Object v = rowValues.get(i);
+				hash = 31 * hash + (v == null ? 0 : v.hashCode());
+			}
+		}
+		final OutputRowIterator p = keyColumns.length > 0 ? partitions[index(hash)] : partitions[nextIndex()];
+		for (int i = 0; i < rowColumns.size(); ++i) {
+			final int col = rowColumns.get(i);
+			final Object v = rowValues.get(i);
+			if (v instanceof Integer)
+				p.setInt(col, ((Integer)v).intValue());
+			else if (v instanceof Double)
+				p.setDouble(col, ((Double)v).doubleValue());
+			else
+				p.setString(col, (String)v);
+		}
+		p.completeRow();
+		rowColumns.clear();
+		rowValues.clear();
+	}
+
+	/** Map a hash code to a partition. */
+	private int index(int hash) {
+		hash ^= hash >>> 16;
+		return Math.floorMod(hash, partitions.length);
+	}
+	/** Get the next partition in turn. */
+	private int nextIndex() {
+		final int i = next;
+		next = (next + 1) % partitions.length;
+		return i;
+	}
+
+	/** Find the slots of the key columns in <code>layout</code>. */
+	private void start(RowBlock layout) throws IOException {
+		keySlots = new int[keyColumns.length];
+		for (int k = 0; k < keyColumns.length; ++k) {
+			keySlots[k] = -1;
+			for (int s = 0; s < layout.getSlotCount(); ++s) {
+				if (layout.columns[s] == keyColumns[k])
+					keySlots[k] = s;
+			}
+			if (keySlots[k] < 0)
+				throw new IOException("key column " + keyColumns[k] + " is not written");
+		}
+	}
+
+	@Override
+	public void writeRows(RowBlock block) throws IOException {
+		if (!rowColumns.isEmpty())
+			throw new IOException("cannot write blocks while a row is incomplete");
+		if (!blockMode) {
+			start(block);
+			blockMode = true;
+		}
+		if (keySlots.length == 0) {
+			// No key: hand whole blocks to the partitions in turn.
+			partitions[nextIndex()].writeRows(block);
+			return;
+		}
+		final int[] slots = keySlots;
+		final RowBlock.Kind[] kinds = block.kinds;
+		for (int row = 0; row < block.size; ++row) {
+			int hash = 0;
+			for (int s : slots) {
+				final int h;
+				switch (kinds[s]) {
+				case INT: h = Integer.hashCode(block.ints[s][row]); break;
+				case NUM: h = Double.hashCode(block.nums[s][row]); break;
+				default:
+					final String str = block.strings[s][row];
+					h = str == null ? 0 : str.hashCode();
+					break;
+				}
+				hash = 31 * hash + h;
+			}
+			partitions[index(hash)].writeRow(block, row);
+		}
+	}
+
+	/** Write the remaining rows, wait for all partitions to be written and commit them.
+	 * The first failure of any partition is rethrown.
+	 */
+	@Override
+	public void commit() throws IOException {
+		IOException ex = null;
+		// Let all partitions finish in parallel before waiting for any of them.
+		for (PipelinedOutputRowIterator p : partitions) {
+			try {
+				p.finish();
+			}
+			catch (IOException e) {
+				if (ex == null)
+					ex = e;
+			}
+		}
+		for (PipelinedOutputRowIterator p : partitions) {
+			try {
+				p.commit();
+			}
+			catch (IOException e) {
+				if (ex == null)
+					ex = e;
+			}
+		}
+		if (ex != null)
+			throw ex;
+	}
+
+	/** Get the number of rows written to each partition so far. */
+	public String getStatistics() {
+		final StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < partitions.length; ++i) {
+			if (i > 0)
+				sb.append(", ");
+			sb.append(partitions[i].getRowCount());
+		}
+		return partitions.length + " partitions with " + sb + " rows";
+	}
+
+	@Override
+	public void close() throws IOException {
+		IOException ex = null;
+		for (PipelinedOutputRowIterator p : partitions) {
+			try {
+				p.close();
+			}
+			catch (IOException e) {
+				if (ex == null)
+					ex = e;
+			}
+		}
+		if (ex != null)
+			throw ex;
+	}
+}
@@ -0,0 +1,286 @@
+//   Copyright 2020 IBM Corporation
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+package ilog.opl.externaldata;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/** Output iterator that writes on a background thread.
+ * This wraps another {@link OutputRowIterator}. Rows passed to {@link #writeRows(RowBlock)}
+ * are copied into blocks owned by this instance. Full blocks are handed over a bounded
+ * queue to a background thread that writes them to the wrapped iterator, so extracting
+ * rows and writing them overlap. The blocks are reused. If all blocks are waiting to be
+ * written then the caller waits (back-pressure). A failure in the background thread is
+ * rethrown to the caller by the next call that hands over a block and by {@link #commit()}.
+ * After a failure, remaining blocks are dropped.
+ *
+ * Rows written field by field before any block are passed on directly to the wrapped
+ * iterator on the calling thread. Once a block was written, rows must not be written
+ * field by field any more.
+ *
+ * The wrapped iterator is only ever used by one thread at a time, so it does not have
+ * to be thread-safe.
+ */
+public class PipelinedOutputRowIterator implements OutputRowIterator {
+	/** Tells the background thread to commit and stop. */
+	private static final RowBlock END = new RowBlock(new RowBlock.Kind[0], 1);
+
+	private final OutputRowIterator output;
+	private final int blockSize;
+	/** Number of full blocks that can wait for the background thread while the next block is filled. */
+	private final int depth;
+	/** Blocks that can be filled. */
+	private final BlockingQueue<RowBlock> free;
+	/** Blocks to be written by the background thread. */
+	private final BlockingQueue<RowBlock> full;
+	/** The block that is currently filled. */
+	private RowBlock current = null;
+	private Thread worker = null;
+	private volatile Throwable failure = null;
+	/** Whether rows were written in blocks. */
+	private boolean started = false;
+	/** Whether the end of the data was handed to the background thread. */
+	private boolean finished = false;
+
+	/* Statistics. */
+	private long rows = 0;
+	private long blocks = 0;
+	/** Time (in nanoseconds) the caller waited for a free block. */
+	private long producerWaitNanos = 0;
+	/** Time (in nanoseconds) the background thread waited for a full block. */
+	private volatile long writerWaitNanos = 0;
+
+	/** Create a new iterator.
+	 * @param output    The iterator to wrap. The new instance takes ownership.
+	 * @param blockSize The number of rows in a block.
+	 * @param depth     The number of full blocks that can wait to be written while the next
+	 *                  block is filled.
+	 */
+	public PipelinedOutputRowIterator(OutputRowIterator output, int blockSize, int depth) {
+		if (blockSize <= 0)
+			throw new IllegalArgumentException("invalid block size " + blockSize);
+		if (depth <= 0)
+			throw new IllegalArgumentException("invalid queue depth " + depth);
+		this.output = output;
+		this.blockSize = blockSize;
+		this.depth = depth;
+		this.free = new ArrayBlockingQueue<RowBlock>(depth);
+		this.full = new ArrayBlockingQueue<RowBlock>(depth + 1);
+	}
+
+	/** Check that rows can be written field by field. */
+	private void checkRowMode() throws IOException {
+		if (started)
+			throw new IOException("cannot write single fields after writing blocks");
+	}
+	@Override
+	public void setInt(int index, int value) throws IOException {
+		checkRowMode();
+		output.setInt(index, value);
+	}
+	@Override
+	public void setDouble(int index, double value) throws IOException {
+		checkRowMode();
+		output.setDouble(index, value);
+	}
+	@Override
+	public void setString(int index, String value) throws IOException {
+		checkRowMode();
+		output.setString(index, value);
+	}
+	@Override
+	public void completeRow() throws IOException {
+		checkRowMode();
+		output.completeRow();
+		++rows;
+	}
+
+	/** Set up blocks with the layout of <code>layout</code> and start the background thread. */
+	private void start(RowBlock layout) {
+		current = new RowBlock(layout.kinds, layout.columns, blockSize);
+		for (int i = 0; i < depth; ++i)
+			free.add(current.makeEmptyCopy());
+		worker = new Thread("opldbsupport-pipeline") {
+			@Override
+			public void run() {
+				try {
+					while (true) {
+						final long start = System.nanoTime();
+						final RowBlock block = full.take();
+						writerWaitNanos += System.nanoTime() - start;
+						if (block == END)
+							break;
+						// After a failure, keep taking blocks so that the producer does not block.
+						if (failure == null) {
+							try {
+								output.writeRows(block);
+							}
+							catch (Throwable t) {
+								failure = t;
+							}
+						}
+						block.clear();
+						free.put(block);
+					}
+					if (failure == null)
+						output.commit();
+				}
+				catch (InterruptedException e) {
+					// We were closed, stop writing.
+				}
+				catch (Throwable t) {
+					if (failure == null)
+						failure = t;
+				}
+			}
+		};
+		worker.setDaemon(true);
+		worker.start();
+	}
+
+	/** Prepare for a block-wise write of rows with the layout of <code>block</code>. */
+	private void prepare(RowBlock block) throws IOException {
+		if (finished)
+			throw new IOException("rows written after commit");
+		if (!started) {
+			start(block);
+			started = true;
+		}
+		else if (current == null)
+			throw new IOException("writing was interrupted");
+		else if (!current.hasLayout(block))
+			throw new IOException("all blocks must have the same layout");
+	}
+
+	/** Hand the current block to the background thread and get an empty one. */
+	private void submit() throws IOException {
+		checkFailure();
+		try {
+			full.put(current);
+			++blocks;
+			current = null;
+			final long start = System.nanoTime();
+			current = free.take();
+			producerWaitNanos += System.nanoTime() - start;
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		}
+	}
+
+	/** Throw the failure of the background thread, if any. */
+	private void checkFailure() throws IOException {
+		final Throwable t = failure;
+		if (t instanceof IOException)
+			throw (IOException)t;
+		if (t != null)
+			throw new IOException(t);
+	}
+
+	@Override
+	public void writeRows(RowBlock block) throws IOException {
+		prepare(block);
+		int from = 0;
+		while (from < block.size) {
+			from += current.appendFrom(block, from);
+			if (current.isFull())
+				submit();
+		}
+		rows += block.size;
+	}
+
+	/** Append a single row of <code>block</code>.
+	 * All blocks and rows must have the same layout.
+	 */
+	void writeRow(RowBlock block, int row) throws IOException {
+		prepare(block);
+		current.appendRow(block, row);
+		++rows;
+		if (current.isFull())
+			submit();
+	}
+
+	/** Hand the remaining rows and the end of the data to the background thread without waiting.
+	 * The background thread commits the wrapped iterator after the last row.
+	 */
+	void finish() throws IOException {
+		if (finished || worker == null)
+			return;
+		try {
+			if (current != null && current.size > 0)
+				submit();
+		}
+		finally {
+			finished = true;
+			try {
+				full.put(END);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException(e);
+			}
+		}
+	}
+
+	/** Write the remaining rows, wait until all rows are written and commit the wrapped iterator. */
+	@Override
+	public void commit() throws IOException {
+		if (worker == null) {
+			// Nothing was written in blocks.
+			output.commit();
+			return;
+		}
+		try {
+			finish();
+		}
+		finally {
+			try {
+				worker.join();
+				worker = null;
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException(e);
+			}
+		}
+		checkFailure();
+	}
+
+	/** Get the number of rows written so far. */
+	public long getRowCount() { return rows; }
+
+	/** Get a description of the rows written and the time the two threads waited for each other. */
+	public String getStatistics() {
+		return rows + " rows in " + blocks + " blocks, extraction waited " + (producerWaitNanos / 1000000) +
+			"ms, writer waited " + (writerWaitNanos / 1000000) + "ms";
+	}
+
+	@Override
+	public void close() throws IOException {
+		final Thread t = worker;
+		worker = null;
+		if (t != null) {
+			t.interrupt();
+			try {
+				t.join();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		output.close();
+	}
+}
@@ -0,0 +1,292 @@
+//   Copyright 2020 IBM Corporation
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+package ilog.opl.externaldata;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import ilog.opl.IloOplTupleSchemaDefinition;
+
+/** Input iterator that reads ahead on a background thread.
+ * This wraps another {@link InputRowIterator}. While the rows of one block are
+ * consumed (usually by pushing them into OPL), a background thread fetches and decodes
+ * the next block of rows from the wrapped iterator. Two blocks are used in turn
+ * (double buffering).
+ *
+ * The first row is served directly from the wrapped iterator. The fields accessed in
+ * that row (column and type) define the layout of the blocks that are filled in the
+ * background, so all rows must be accessed in the same way. Accessing a field that was
+ * not accessed in the first row results in an {@link IOException}.
+ *
+ * If rows are read with {@link #nextRows(RowBlock)} only then the background thread fills
+ * blocks of the requested layout and no row is served directly.
+ *
+ * The wrapped iterator is only ever used by one thread at a time, so it does not have
+ * to be thread-safe.
+ */
+public class PrefetchInputRowIterator implements InputRowIterator {
+	/** Marks the end of the data after a failure in the background thread. */
+	private static final RowBlock FAILED = new RowBlock(new RowBlock.Kind[0], 1);
+
+	private final InputRowIterator input;
+	private final int blockSize;
+	/** Columns and kinds accessed in the first row. */
+	private final ArrayList<RowBlock.Kind> firstKinds = new ArrayList<RowBlock.Kind>();
+	private final ArrayList<Integer> firstColumns = new ArrayList<Integer>();
+	/** Per column the slot for <code>int</code>, <code>double</code> and string data (or -1). */
+	private int[] intSlot, numSlot, strSlot;
+
+	/** Blocks that can be filled by the background thread. */
+	private final BlockingQueue<RowBlock> free = new ArrayBlockingQueue<RowBlock>(2);
+	/** Blocks filled by the background thread. */
+	private final BlockingQueue<RowBlock> full = new ArrayBlockingQueue<RowBlock>(2);
+	private Thread worker = null;
+	private volatile Throwable failure = null;
+
+	/** Whether rows are only read with {@link #nextRows(RowBlock)}. */
+	private boolean blockMode = false;
+	/** Number of calls to {@link #next()} so far. */
+	private long calls = 0;
+	/** Whether the wrapped iterator reached the end. */
+	private boolean done = false;
+	/** The block that is currently consumed. */
+	private RowBlock current = null;
+	/** Index of the current row in {@link #current}. */
+	private int row = -1;
+	private int columns = -1;
+
+	/** Create a new iterator.
+	 * @param input     The iterator to wrap. The new instance takes ownership.
+	 * @param blockSize The number of rows to read ahead.
+	 */
+	public PrefetchInputRowIterator(InputRowIterator input, int blockSize) {
+		if (blockSize <= 0)
+			throw new IllegalArgumentException("invalid block size " + blockSize);
+		this.input = input;
+		this.blockSize = blockSize;
+	}
+
+	/** Record that column <code>index</code> is accessed as <code>kind</code> in the first row. */
+	private void record(int index, RowBlock.Kind kind) {
+		for (int i = 0; i < firstColumns.size(); ++i) {
+			if (firstColumns.get(i) == index && firstKinds.get(i) == kind)
+				return;
+		}
+		firstColumns.add(index);
+		firstKinds.add(kind);
+	}
+
+	/** Look up the slot for <code>index</code> in <code>slots</code>. */
+	private int lookup(int[] slots, int index, String type) throws IOException {
+		if (current == null)
+			throw new IOException("no current row");
+		final int slot = index >= 0 && index < slots.length ? slots[index] : -1;
+		if (slot < 0)
+			throw new IOException("column " + index + " was not read as " + type + " in the first row");
+		return slot;
+	}
+
+	@Override
+	public int getInt(int index) throws IOException {
+		if (worker == null) {
+			record(index, RowBlock.Kind.INT);
+			return input.getInt(index);
+		}
+		return current.ints[lookup(intSlot, index, "int")][row];
+	}
+
+	@Override
+	public double getDouble(int index) throws IOException {
+		if (worker == null) {
+			record(index, RowBlock.Kind.NUM);
+			return input.getDouble(index);
+		}
+		return current.nums[lookup(numSlot, index, "double")][row];
+	}
+
+	@Override
+	public String getString(int index) throws IOException {
+		if (worker == null) {
+			record(index, RowBlock.Kind.STR);
+			return input.getString(index);
+		}
+		return current.strings[lookup(strSlot, index, "string")][row];
+	}
+
+	/** Set up the block layout from the fields accessed in the first row and start the background thread. */
+	private void startFromFirstRow() throws IOException {
+		final RowBlock.Kind[] kinds = firstKinds.toArray(new RowBlock.Kind[firstKinds.size()]);
+		final int[] cols = new int[firstColumns.size()];
+		int max = -1;
+		for (int i = 0; i < cols.length; ++i) {
+			cols[i] = firstColumns.get(i);
+			max = Math.max(max, cols[i]);
+		}
+		intSlot = new int[max + 1];
+		numSlot = new int[max + 1];
+		strSlot = new int[max + 1];
+		Arrays.fill(intSlot, -1);
+		Arrays.fill(numSlot, -1);
+		Arrays.fill(strSlot, -1);
+		for (int s = 0; s < kinds.length; ++s) {
+			switch (kinds[s]) {
+			case INT: intSlot[cols[s]] = s; break;
+			case NUM: numSlot[cols[s]] = s; break;
+			case STR: strSlot[cols[s]] = s; break;
+			}
+		}
+		start(new RowBlock(kinds, cols, blockSize));
+	}
+
+	/** Start the background thread.
+	 * @param first The first block to fill. This also defines the layout for all other blocks.
+	 */
+	private void start(RowBlock first) throws IOException {
+		if (columns < 0)
+			columns = input.getColumnCount();
+		free.add(first);
+		free.add(first.makeEmptyCopy());
+
+		worker = new Thread("opldbsupport-prefetch") {
+			@Override
+			public void run() {
+				try {
+					boolean more = true;
+					while (more) {
+						final RowBlock block = free.take();
+						more = input.nextRows(block) > 0;
+						full.put(block);
+					}
+				}
+				catch (InterruptedException e) {
+					// We were closed, stop reading.
+				}
+				catch (Throwable t) {
+					failure = t;
+					full.offer(FAILED);
+				}
+			}
+		};
+		worker.setDaemon(true);
+		worker.start();
+	}
+
+	/** Get the next block filled by the background thread.
+	 * @return The next block or <code>null</code> if there are no more rows.
+	 */
+	private RowBlock takeBlock() throws IOException {
+		final RowBlock block;
+		try {
+			block = full.take();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		}
+		if (block == FAILED) {
+			done = true;
+			final Throwable t = failure;
+			if (t instanceof IOException)
+				throw (IOException)t;
+			throw new IOException(t);
+		}
+		if (block.size == 0) {
+			done = true;
+			return null;
+		}
+		return block;
+	}
+
+	/** Hand a consumed block back to the background thread. */
+	private void release(RowBlock block) {
+		block.clear();
+		free.add(block);
+	}
+
+	@Override
+	public boolean next() throws IOException {
+		if (done)
+			return false;
+		++calls;
+		if (calls == 1) {
+			// The first row is read directly so that we learn which fields are accessed.
+			done = !input.next();
+			return !done;
+		}
+		if (worker == null)
+			startFromFirstRow();
+		if (current != null) {
+			if (++row < current.size)
+				return true;
+			release(current);
+			current = null;
+		}
+		current = takeBlock();
+		row = 0;
+		return current != null;
+	}
+
+	@Override
+	public int nextRows(RowBlock block) throws IOException {
+		if (calls == 0 && worker == null) {
+			// Rows are only read in blocks, so fill blocks of exactly the requested layout.
+			blockMode = true;
+			start(block.makeEmptyCopy());
+		}
+		if (!blockMode)
+			return InputRowIterator.super.nextRows(block);
+		block.clear();
+		if (done)
+			return 0;
+		final RowBlock next = takeBlock();
+		if (next == null)
+			return 0;
+		block.copyFrom(next);
+		release(next);
+		return block.size;
+	}
+
+	@Override
+	public int getColumnCount() throws IOException {
+		if (columns < 0)
+			columns = input.getColumnCount();
+		return columns;
+	}
+
+	@Override
+	public void close() throws IOException {
+		done = true;
+		current = null;
+		final Thread t = worker;
+		worker = null;
+		if (t != null) {
+			t.interrupt();
+			try {
+				t.join();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		input.close();
+	}
+
+	@Override
+	public TupleIO makeTupleIO(IloOplTupleSchemaDefinition schema) throws IOException {
+		return input.makeTupleIO(schema);
+	}
+}
@@ -0,0 +1,169 @@
+//   Copyright 2020 IBM Corporation
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+package ilog.opl.externaldata;
+
+import java.util.Arrays;
+
+/** A block of rows that is stored column by column in primitive arrays.
+ * The layout of a block is given by a list of <em>slots</em>. Each slot has a
+ * {@link Kind} and refers to a column in the input or output. Data for slot
+ * <code>s</code> and row <code>r</code> is found in <code>ints[s][r]</code>,
+ * <code>nums[s][r]</code> or <code>strings[s][r]</code>, depending on the kind
+ * of the slot. The arrays for the other kinds are <code>null</code>.
+ */
+public final class RowBlock {
+	/** The type of data stored in a slot. */
+	public enum Kind {
+		/** <code>int</code> data. */
+		INT,
+		/** <code>double</code> data. */
+		NUM,
+		/** String data. */
+		STR }
+
+	/** Maximum number of rows in this block. */
+	public final int capacity;
+	/** The kind of each slot. */
+	public final Kind[] kinds;
+	/** The column index (0-based) of each slot. */
+	public final int[] columns;
+	/** Integer data, indexed by slot and row. */
+	public final int[][] ints;
+	/** Double data, indexed by slot and row. */
+	public final double[][] nums;
+	/** String data, indexed by slot and row. */
+	public final String[][] strings;
+	/** Number of valid rows in this block. */
+	public int size = 0;
+
+	/** Create a new block.
+	 * @param kinds    The kind of each slot.
+	 * @param columns  The column for each slot.
+	 * @param capacity The maximum number of rows in the block.
+	 */
+	public RowBlock(Kind[] kinds, int[] columns, int capacity) {
+		if (kinds.length != columns.length)
+			throw new IllegalArgumentException("mismatch of kinds and columns");
+		if (capacity <= 0)
+			throw new IllegalArgumentException("invalid capacity " + capacity);
+		this.capacity = capacity;
+		this.kinds = kinds.clone();
+		this.columns = columns.clone();
+		this.ints = new int[kinds.length][];
+		this.nums = new double[kinds.length][];
+		this.strings = new String[kinds.length][];
+		for (int s = 0; s < kinds.length; ++s) {
+			switch (kinds[s]) {
+			case INT: ints[s] = new int[capacity]; break;
+			case NUM: nums[s] = new double[capacity]; break;
+			case STR: strings[s] = new String[capacity]; break;
+			}
+		}
+	}
+
+	/** Create a new block in which slot <code>s</code> refers to column <code>s</code>.
+	 * @param kinds    The kind of each slot.
+	 * @param capacity The maximum number of rows in the block.
+	 */
+	public RowBlock(Kind[] kinds, int capacity) {
+		this(kinds, identity(kinds.length), capacity);
+	}
+
+	private static int[] identity(int n) {
+		final int[] result = new int[n];
+		for (int i = 0; i < n; ++i)
+			result[i] = i;
+		return result;
+	}
+
+	/** Create an empty block with the same layout and capacity as this block. */
+	public RowBlock makeEmptyCopy() {
+		return new RowBlock(kinds, columns, capacity);
+	}
+
+	/** Get the number of slots. */
+	public int getSlotCount() { return kinds.length; }
+
+	/** Test whether no more rows can be added. */
+	public boolean isFull() { return size >= capacity; }
+
+	/** Test whether <code>other</code> has the same slots as this block. */
+	public boolean hasLayout(RowBlock other) {
+		return Arrays.equals(kinds, other.kinds) && Arrays.equals(columns, other.columns);
+	}
+
+	/** Copy the rows of <code>src</code> into this block.
+	 * The two blocks must have the same layout and this block must be big enough.
+	 * @param src The block to copy from.
+	 */
+	public void copyFrom(RowBlock src) {
+		if (src.size > capacity)
+			throw new IllegalArgumentException("block too small");
+		for (int s = 0; s < kinds.length; ++s) {
+			switch (kinds[s]) {
+			case INT: System.arraycopy(src.ints[s], 0, ints[s], 0, src.size); break;
+			case NUM: System.arraycopy(src.nums[s], 0, nums[s], 0, src.size); break;
+			case STR: System.arraycopy(src.strings[s], 0, strings[s], 0, src.size); break;
+			}
+		}
+		size = src.size;
+	}
+
+	/** Append rows of <code>src</code> to this block.
+	 * The two blocks must have the same layout. Rows are copied until this block is full
+	 * or all rows of <code>src</code> starting at <code>from</code> were copied.
+	 * @param src  The block to copy from.
+	 * @param from The first row in <code>src</code> to copy.
+	 * @return The number of rows copied.
+	 */
+	public int appendFrom(RowBlock src, int from) {
+		final int count = Math.min(capacity - size, src.size - from);
+		if (count <= 0)
+			return 0;
+		for (int s = 0; s < kinds.length; ++s) {
+			switch (kinds[s]) {
+			case INT: System.arraycopy(src.ints[s], from, ints[s], size, count); break;
+			case NUM: System.arraycopy(src.nums[s], from, nums[s], size, count); break;
+			case STR: System.arraycopy(src.strings[s], from, strings[s], size, count); break;
+			}
+		}
+		size += count;
+		return count;
+	}
+
+	/** Append row <code>row</code> of <code>src</code> to this block.
+	 * The two blocks must have the same layout and this block must not be full.
+	 */
+	public void appendRow(RowBlock src, int row) {
+		for (int s = 0; s < kinds.length; ++s) {
+			switch (kinds[s]) {
+			case INT: ints[s][size] = src.ints[s][row]; break;
+			case NUM: nums[s][size] = src.nums[s][row]; break;
+			case STR: strings[s][size] = src.strings[s][row]; break;
+			}
+		}
+		++size;
+	}
+
+	/** Drop all rows.
+	 * String references are cleared so that they can be garbage collected.
+	 */
+	public void clear() {
+		for (int s = 0; s < kinds.length; ++s) {
+			if (strings[s] != null)
+				Arrays.fill(strings[s], 0, size, null);
+		}
+		size = 0;
+	}
+}
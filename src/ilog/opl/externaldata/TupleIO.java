@@ -29,7 +29,7 @@ import java.util.Vector;
 /** Class to simplify input and output of tuples.
  * Instances of this class give a specification of a tuple by a list of <code>TupleSpec</code>s. 
  */
-public class TupleIO implements Assign, Reader{
+public class TupleIO implements BlockAssign, Reader{
 	/** Meta data for a table. */
 	public interface TableMetaData {
 		/** Get the number of columns. */
@@ -157,24 +157,89 @@ public class TupleIO implements Assign, Reader{
 		return array;
 	}
 
-	private final TupleSpec[] fields;
+	/* Operations in the compiled plan. */
+	private static final byte OP_INT = 0;
+	private static final byte OP_NUM = 1;
+	private static final byte OP_STR = 2;
+	private static final byte OP_START = 3;
+	private static final byte OP_END = 4;
+
+	/** The operation for each step of the plan.
+	 * The plan is compiled once from the field specifications so that assigning a row
+	 * is a tight loop over primitive arrays.
+	 */
+	private final byte[] ops;
+	/** For each step that fills a field the column in the input. */
+	private final int[] columns;
+	/** For each step that fills a field the slot in a block created by {@link #makeBlock(InputRowIterator, int)}. */
+	private final int[] slots;
+	/** The kind of each slot. */
+	private final RowBlock.Kind[] kinds;
+	/** The column of each slot. */
+	private final int[] slotColumns;
+
 	public TupleIO(IloOplTupleSchemaDefinition def) throws IloException {
 		this(def, null);
 	}
 	public TupleIO(IloOplTupleSchemaDefinition def, TableMetaData meta) throws IloException {
-		fields = makeTupleSpec(def, meta);
+		final TupleSpec[] fields = makeTupleSpec(def, meta);
+		ops = new byte[fields.length];
+		columns = new int[fields.length];
+		slots = new int[fields.length];
+		int nslots = 0;
+		for (int i = 0; i < fields.length; ++i) {
+			columns[i] = fields[i].column;
+			switch (fields[i].action) {
+			case INT: ops[i] = OP_INT; slots[i] = nslots++; break;
+			case NUM: ops[i] = OP_NUM; slots[i] = nslots++; break;
+			case STR: ops[i] = OP_STR; slots[i] = nslots++; break;
+			case START: ops[i] = OP_START; slots[i] = -1; break;
+			case END: ops[i] = OP_END; slots[i] = -1; break;
+			}
+		}
+		kinds = new RowBlock.Kind[nslots];
+		slotColumns = new int[nslots];
+		for (int i = 0; i < fields.length; ++i) {
+			switch (ops[i]) {
+			case OP_INT: kinds[slots[i]] = RowBlock.Kind.INT; slotColumns[slots[i]] = columns[i]; break;
+			case OP_NUM: kinds[slots[i]] = RowBlock.Kind.NUM; slotColumns[slots[i]] = columns[i]; break;
+			case OP_STR: kinds[slots[i]] = RowBlock.Kind.STR; slotColumns[slots[i]] = columns[i]; break;
+			}
+		}
 	}
 
 	@Override
 	public void assign(IloOplDataHandler handler, InputRowIterator input) throws IOException {
+		final byte[] ops = this.ops;
+		final int[] columns = this.columns;
+		handler.startTuple();
+		for (int i = 0; i < ops.length; ++i) {
+			switch (ops[i]) {
+			case OP_INT: handler.addIntItem(input.getInt(columns[i])); break;
+			case OP_NUM: handler.addNumItem(input.getDouble(columns[i])); break;
+			case OP_STR: handler.addStringItem(input.getString(columns[i])); break;
+			case OP_START: handler.startTuple(); break;
+			case OP_END: handler.endTuple(); break;
+			}
+		}
+		handler.endTuple();
+	}
+	@Override
+	public RowBlock makeBlock(InputRowIterator input, int capacity) {
+		return new RowBlock(kinds, slotColumns, capacity);
+	}
+	@Override
+	public void assign(IloOplDataHandler handler, RowBlock block, int row) {
+		final byte[] ops = this.ops;
+		final int[] slots = this.slots;
 		handler.startTuple();
-		for (TupleSpec field : fields) {
-			switch (field.action) {
-			case INT: handler.addIntItem(input.getInt(field.column)); break;
-			case NUM: handler.addNumItem(input.getDouble(field.column)); break;
-			case STR: handler.addStringItem(input.getString(field.column)); break;
-			case START: handler.startTuple(); break;
-			case END: handler.endTuple(); break;
+		for (int i = 0; i < ops.length; ++i) {
+			switch (ops[i]) {
+			case OP_INT: handler.addIntItem(block.ints[slots[i]][row]); break;
+			case OP_NUM: handler.addNumItem(block.nums[slots[i]][row]); break;
+			case OP_STR: handler.addStringItem(block.strings[slots[i]][row]); break;
+			case OP_START: handler.startTuple(); break;
+			case OP_END: handler.endTuple(); break;
 			}
 		}
 		handler.endTuple();
@@ -0,0 +1,217 @@
+//   Copyright 2020 IBM Corporation
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+package ilog.opl.externaldata.csv;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import ilog.opl.IloOplModel;
+import ilog.opl.dbsupport.DataBaseDataHandler;
+import ilog.opl.dbsupport.DataBaseDataHandler.ConnectionInfo;
+import ilog.opl.externaldata.DataConnection;
+import ilog.opl.externaldata.InputRowIterator;
+import ilog.opl.externaldata.Options;
+import ilog.opl.externaldata.OutputRowIterator;
+
+/** Data connection that is backed up by CSV (or TSV) files in a directory.
+ * The connection string is the directory, the commands for reading are file names
+ * relative to that directory. The first line of a file may contain column names that
+ * are matched against the names of tuple fields.
+ * See {@link CsvInputIterator} for how files are read.
+ *
+ * Files that are published are first written to temporary files. They replace the
+ * target files only when the connection is committed, i.e., after all elements were
+ * published successfully. See {@link CsvOutputIterator} for how files are written.
+ */
+public class CsvConnection implements DataConnection {
+
+	private static boolean traceEnabled = false;
+
+	public static boolean setTraceEnabled(boolean set) {
+		final boolean old = traceEnabled;
+		traceEnabled = set;
+		return old;
+	}
+
+	public static void traceln(String s) {
+		if (traceEnabled)
+			System.err.println(s);
+	}
+
+	/** Option for the field delimiter.
+	 * This is a single character or <code>tab</code>. The default is a comma, or a tab
+	 * for files with extension <code>.tsv</code>.
+	 */
+	public static final String OPTION_DELIMITER = "delimiter";
+	/** Option that specifies whether the first line of a file contains column names. */
+	public static final String OPTION_HEADER = "header";
+	/** Option for the number of threads that parse or compress a file. */
+	public static final String OPTION_THREADS = "threads";
+	/** Option for the approximate number of bytes that are parsed as one unit. */
+	public static final String OPTION_CHUNK_SIZE = "chunkSize";
+	/** Default for {@link #OPTION_CHUNK_SIZE}. */
+	public static final int DEFAULT_CHUNK_SIZE = 8 * 1024 * 1024;
+	/** Option for the compression of published files.
+	 * This is <code>none</code> or <code>gzip</code>. The default is <code>gzip</code> for
+	 * files with extension <code>.gz</code> and <code>none</code> otherwise.
+	 */
+	public static final String OPTION_COMPRESS = "compress";
+	/** Option for column names that are written as first line of published files.
+	 * Names are separated by commas.
+	 */
+	public static final String OPTION_COLUMNS = "columns";
+	/** Option for the size of the output buffer in bytes. With compression this is
+	 * also the amount of data that is compressed by one thread at a time.
+	 */
+	public static final String OPTION_BUFFER_SIZE = "bufferSize";
+	/** Default for {@link #OPTION_BUFFER_SIZE}. */
+	public static final int DEFAULT_BUFFER_SIZE = 1024 * 1024;
+
+	/** The directory relative to which file names are resolved. */
+	private final File directory;
+	/** Options for this connection. */
+	private final Options options;
+	/** Temporary files that were written completely and their targets. */
+	private final List<File[]> pending = new ArrayList<File[]>();
+
+	/** Create a new connection.
+	 * @param directory The directory relative to which file names are resolved. If this
+	 *                  is empty then file names are relative to the working directory.
+	 * @param options   Options for the connection. Options given with a command override these.
+	 */
+	public CsvConnection(String directory, Options options) {
+		this.directory = directory.length() > 0 ? new File(directory) : null;
+		this.options = options;
+	}
+
+	/** Resolve a file name against the connection directory. */
+	File resolve(String name) {
+		final File f = new File(name);
+		return f.isAbsolute() || directory == null ? f : new File(directory, name);
+	}
+
+	/** Get the delimiter for <code>file</code> from <code>opts</code>. */
+	static byte getDelimiter(Options opts, File file) {
+		String name = file.getName().toLowerCase(Locale.ROOT);
+		if (name.endsWith(".gz"))
+			name = name.substring(0, name.length() - 3);
+		final String def = name.endsWith(".tsv") ? "tab" : ",";
+		final String value = opts.getString(OPTION_DELIMITER, def);
+		if (value.equalsIgnoreCase("tab") || value.equals("\\t"))
+			return '\t';
+		if (value.length() != 1 || value.charAt(0) > 127 || value.charAt(0) == '"')
+			throw new IllegalArgumentException("invalid delimiter '" + value + "'");
+		return (byte)value.charAt(0);
+	}
+
+	@Override
+	public InputRowIterator openInputRows(String command) throws IOException {
+		try {
+			final Options opts = options.with(Options.parse(command));
+			final File file = resolve(opts.getRemainder().trim());
+			return new CsvInputIterator(file, getDelimiter(opts, file),
+			                            opts.getBoolean(OPTION_HEADER, true),
+			                            opts.getInt(OPTION_CHUNK_SIZE, DEFAULT_CHUNK_SIZE),
+			                            opts.getInt(OPTION_THREADS, Runtime.getRuntime().availableProcessors()));
+		}
+		catch (IllegalArgumentException e) {
+			throw new IOException(e);
+		}
+	}
+
+	@Override
+	public OutputRowIterator openOutputRows(String command) throws IOException {
+		try {
+			final Options opts = options.with(Options.parse(command));
+			final File file = resolve(opts.getRemainder().trim());
+			final String compress = opts.getString(OPTION_COMPRESS, file.getName().toLowerCase(Locale.ROOT).endsWith(".gz") ? "gzip" : "none");
+			final boolean gzip;
+			if (compress.equalsIgnoreCase("gzip"))
+				gzip = true;
+			else if (compress.equalsIgnoreCase("none"))
+				gzip = false;
+			else
+				throw new IllegalArgumentException("unsupported compression '" + compress + "'");
+			final String columns = opts.getString(OPTION_COLUMNS, null);
+			return new CsvOutputIterator(this, file, getDelimiter(opts, file),
+			                             columns == null ? null : columns.split(",", -1),
+			                             opts.getInt(OPTION_BUFFER_SIZE, DEFAULT_BUFFER_SIZE), gzip,
+			                             opts.getInt(OPTION_THREADS, Runtime.getRuntime().availableProcessors()));
+		}
+		catch (IllegalArgumentException e) {
+			throw new IOException(e);
+		}
+	}
+
+	/** Record a file that was written completely.
+	 * @param tmp    The temporary file that holds the data.
+	 * @param target The file that is replaced by <code>tmp</code> on commit.
+	 */
+	synchronized void addPending(File tmp, File target) {
+		pending.add(new File[]{ tmp, target });
+	}
+
+	@Override
+	public synchronized void commit() throws IOException {
+		try {
+			for (File[] f : pending) {
+				try {
+					Files.move(f[0].toPath(), f[1].toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+				}
+				catch (AtomicMoveNotSupportedException e) {
+					Files.move(f[0].toPath(), f[1].toPath(), StandardCopyOption.REPLACE_EXISTING);
+				}
+			}
+		}
+		finally {
+			// Files that could not be moved are dropped.
+			rollback();
+		}
+	}
+
+	@Override
+	public synchronized void rollback() throws IOException {
+		for (File[] f : pending)
+			f[0].delete();
+		pending.clear();
+	}
+
+	@Override
+	public void close() throws IOException {
+		rollback();
+	}
+
+	/** Convenience function to create and register data handlers.
+	 * This is intended to be called from a .dat file's <code>prepare</code> section
+	 * and provides an easy way to add CSV support to a .dat file.
+	 * @param prefix The prefix for *Connection, *Read, *Publish statements.
+	 * @param model The model to which the new syntax is added.
+	 */
+	public static void register(String prefix, IloOplModel model) {
+		System.err.println("Registering " + prefix);
+		new DataBaseDataHandler(prefix, model, new DataBaseDataHandler.ConnectionFactory() {
+			@Override
+			public DataConnection newConnection(ConnectionInfo info, boolean write) throws IOException {
+				return new CsvConnection(info.connstr, info.options);
+			}
+		});
+		System.err.println("Prefix " + prefix + " registered for CSV");
+	}
+}
@@ -0,0 +1,430 @@
+//   Copyright 2020 IBM Corporation
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+package ilog.opl.externaldata.csv;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import ilog.concert.IloException;
+import ilog.opl.IloOplTupleSchemaDefinition;
+import ilog.opl.externaldata.InputRowIterator;
+import ilog.opl.externaldata.RowBlock;
+import ilog.opl.externaldata.TupleIO;
+
+/** Read rows from a CSV file.
+ * The file is split into chunks of roughly equal size that end at line boundaries.
+ * Each chunk is memory-mapped and parsed separately, directly from the mapping,
+ * so file data is never copied to the Java heap (except for the bytes of string fields).
+ *
+ * When rows are read with {@link #nextRows(RowBlock)} then chunks are parsed in parallel
+ * on a pool of worker threads, directly into blocks of the requested layout. Rows are
+ * still returned in file order. Only a bounded number of chunks is parsed ahead.
+ * When rows are read with {@link #next()} then chunks are parsed one line at a time on
+ * the calling thread.
+ *
+ * Empty lines are skipped. Line breaks in quoted fields are not supported since lines
+ * are split without looking at quotes.
+ */
+final class CsvInputIterator implements InputRowIterator {
+	private static final byte[] UTF8_BOM = { (byte)0xef, (byte)0xbb, (byte)0xbf };
+
+	private final File file;
+	private FileChannel channel;
+	private final long size;
+	private final byte delimiter;
+	private final int chunkSize;
+	private final int threads;
+	/** Column names from the header line or <code>null</code> if there is no header. */
+	private final String[] header;
+	/** Number of columns in the header or first line. */
+	private final int columnCount;
+	/** Offset in the file of the first byte that was not yet handed out to a chunk. */
+	private long position;
+
+	/** Data of the chunk read by {@link #next()}. */
+	private ByteBuffer rowData = null;
+	/** Number of bytes of the chunk in {@link #rowData}. */
+	private int rowLength = 0;
+	/** Offset of the next line in {@link #rowData}. */
+	private int rowPos = 0;
+	/** File offset of {@link #rowData}. */
+	private long rowOffset = 0;
+	/** The current line in row mode. */
+	private final CsvLine line;
+	private boolean hasRow = false;
+
+	/** Worker threads, created on the first call to {@link #nextRows(RowBlock)}. */
+	private ExecutorService pool = null;
+	/** Layout of the blocks that are filled. */
+	private RowBlock layout = null;
+	/** Chunks that are being parsed, in file order. */
+	private final ArrayDeque<Future<List<RowBlock>>> pending = new ArrayDeque<Future<List<RowBlock>>>();
+	/** Parsed blocks of the current chunk. */
+	private final ArrayDeque<RowBlock> parts = new ArrayDeque<RowBlock>();
+	/** The parsed block from which rows are currently copied. */
+	private RowBlock part = null;
+	private int partRow = 0;
+
+	/** Open a file for reading.
+	 * @param file      The file to read.
+	 * @param delimiter The field delimiter.
+	 * @param header    Whether the first line contains column names.
+	 * @param chunkSize The (approximate) number of bytes in a chunk.
+	 * @param threads   The number of threads that parse chunks.
+	 * @throws IOException if the file cannot be opened.
+	 */
+	public CsvInputIterator(File file, byte delimiter, boolean header, int chunkSize, int threads) throws IOException {
+		if (chunkSize <= 0)
+			throw new IllegalArgumentException("invalid chunk size " + chunkSize);
+		if (threads <= 0)
+			throw new IllegalArgumentException("invalid number of threads " + threads);
+		this.file = file;
+		this.delimiter = delimiter;
+		this.chunkSize = chunkSize;
+		this.threads = threads;
+		this.line = new CsvLine(delimiter);
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		boolean ok = false;
+		try {
+			size = channel.size();
+			position = 0;
+			if (size >= UTF8_BOM.length) {
+				final ByteBuffer bom = map(0, UTF8_BOM.length);
+				if (bom.get(0) == UTF8_BOM[0] && bom.get(1) == UTF8_BOM[1] && bom.get(2) == UTF8_BOM[2])
+					position = UTF8_BOM.length;
+			}
+			final CsvLine first = new CsvLine(delimiter);
+			final long firstEnd = peekLine(first);
+			if (header && firstEnd >= 0) {
+				this.header = new String[first.getCount()];
+				for (int i = 0; i < this.header.length; ++i)
+					this.header[i] = first.getString(i).trim();
+				position = firstEnd;
+			}
+			else
+				this.header = null;
+			columnCount = firstEnd >= 0 ? first.getCount() : 0;
+			ok = true;
+		}
+		finally {
+			if (!ok)
+				channel.close();
+		}
+	}
+
+	/** Map <code>length</code> bytes from offset <code>start</code> of the file.
+	 * Only absolute <code>get</code> methods are used on the result, so it can be read
+	 * by another thread than the one that created it.
+	 */
+	private MappedByteBuffer map(long start, int length) throws IOException {
+		return channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+	}
+
+	/** Find the end of the line that contains offset <code>from</code>.
+	 * @return The offset after the next line terminator or the size of the file.
+	 */
+	private long findLineEnd(long from) throws IOException {
+		final int window = 64 * 1024;
+		long p = from;
+		while (p < size) {
+			final int length = (int)Math.min(window, size - p);
+			final MappedByteBuffer map = map(p, length);
+			for (int i = 0; i < length; ++i) {
+				if (map.get(i) == '\n')
+					return p + i + 1;
+			}
+			p += length;
+		}
+		return size;
+	}
+
+	/** Get the end of the chunk that starts at <code>start</code>. */
+	private long nextBoundary(long start) throws IOException {
+		if (size - start <= chunkSize)
+			return size;
+		return findLineEnd(start + chunkSize - 1);
+	}
+
+	/** Split the first non-empty line at or after {@link #position} into <code>into</code>.
+	 * @return The offset after that line or -1 if there is no such line.
+	 */
+	private long peekLine(CsvLine into) throws IOException {
+		long start = position;
+		while (start < size) {
+			final long end = findLineEnd(start);
+			final int length = (int)(end - start);
+			final ByteBuffer data = map(start, length);
+			final int eol = endOfLine(data, 0, length);
+			if (eol > 0) {
+				into.split(data, 0, eol);
+				return end;
+			}
+			start = end;
+		}
+		return -1;
+	}
+
+	/** Get the end of a line without the line terminator.
+	 * @param data  The buffer that holds the line.
+	 * @param start The start of the line.
+	 * @param next  The start of the next line.
+	 */
+	private static int endOfLine(ByteBuffer data, int start, int next) {
+		int eol = next;
+		if (eol > start && data.get(eol - 1) == '\n')
+			--eol;
+		if (eol > start && data.get(eol - 1) == '\r')
+			--eol;
+		return eol;
+	}
+
+	/** Find the start of the line after <code>start</code> in the first <code>length</code> bytes of <code>data</code>. */
+	private static int nextLine(ByteBuffer data, int start, int length) {
+		int p = start;
+		while (p < length && data.get(p) != '\n')
+			++p;
+		return p < length ? p + 1 : p;
+	}
+
+	/** Parse lines into blocks.
+	 * @param file      The file from which <code>data</code> was read (for error messages).
+	 * @param data      The data to parse.
+	 * @param from      Start of the first line in <code>data</code>.
+	 * @param length    Number of bytes in <code>data</code>.
+	 * @param offset    File offset of <code>data</code> (for error messages).
+	 * @param delimiter The field delimiter.
+	 * @param layout    Layout for the blocks.
+	 * @return The blocks that hold the data, all but the last one are full.
+	 */
+	private static List<RowBlock> parse(File file, ByteBuffer data, int from, int length, long offset, byte delimiter, RowBlock layout) throws IOException {
+		final CsvLine line = new CsvLine(delimiter);
+		final List<RowBlock> blocks = new ArrayList<RowBlock>();
+		RowBlock block = null;
+		int p = from;
+		while (p < length) {
+			final int next = nextLine(data, p, length);
+			final int eol = endOfLine(data, p, next);
+			if (eol > p) {
+				if (block == null || block.isFull()) {
+					block = layout.makeEmptyCopy();
+					blocks.add(block);
+				}
+				try {
+					line.split(data, p, eol);
+					line.store(block);
+				}
+				catch (IOException e) {
+					throw new IOException(file + ", line at byte " + (offset + p) + ": " + e.getMessage(), e);
+				}
+			}
+			p = next;
+		}
+		return blocks;
+	}
+
+	@Override
+	public boolean next() throws IOException {
+		if (pool != null)
+			throw new IOException("cannot read single rows after reading blocks");
+		while (true) {
+			if (rowData == null || rowPos >= rowLength) {
+				if (position >= size) {
+					hasRow = false;
+					return false;
+				}
+				final long end = nextBoundary(position);
+				rowLength = (int)(end - position);
+				rowData = map(position, rowLength);
+				rowOffset = position;
+				rowPos = 0;
+				position = end;
+			}
+			final int next = nextLine(rowData, rowPos, rowLength);
+			final int eol = endOfLine(rowData, rowPos, next);
+			final int start = rowPos;
+			rowPos = next;
+			if (eol > start) {
+				try {
+					line.split(rowData, start, eol);
+				}
+				catch (IOException e) {
+					throw new IOException(file + ", line at byte " + (rowOffset + start) + ": " + e.getMessage(), e);
+				}
+				hasRow = true;
+				return true;
+			}
+		}
+	}
+
+	private void checkRow() throws IOException {
+		if (!hasRow)
+			throw new IOException("no current row");
+	}
+	@Override
+	public int getInt(int index) throws IOException {
+		checkRow();
+		return line.getInt(index);
+	}
+	@Override
+	public double getDouble(int index) throws IOException {
+		checkRow();
+		return line.getDouble(index);
+	}
+	@Override
+	public String getString(int index) throws IOException {
+		checkRow();
+		return line.getString(index);
+	}
+
+	/** Start parsing chunks in parallel. */
+	private void start(RowBlock block) {
+		layout = block.makeEmptyCopy();
+		pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				final Thread t = new Thread(r, "opldbsupport-csv");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		if (rowData != null && rowPos < rowLength) {
+			// Rest of the chunk that was partially read with next().
+			final ByteBuffer data = rowData;
+			final int from = rowPos;
+			final int length = rowLength;
+			final long offset = rowOffset;
+			pending.add(pool.submit(new Callable<List<RowBlock>>() {
+				@Override
+				public List<RowBlock> call() throws IOException {
+					return parse(file, data, from, length, offset, delimiter, layout);
+				}
+			}));
+		}
+		rowData = null;
+		hasRow = false;
+	}
+
+	/** Hand out chunks to the workers until enough chunks are pending. */
+	private void submit() throws IOException {
+		while (pending.size() < 2 * threads && position < size) {
+			final long start = position;
+			final long end = nextBoundary(start);
+			position = end;
+			pending.add(pool.submit(new Callable<List<RowBlock>>() {
+				@Override
+				public List<RowBlock> call() throws IOException {
+					final int length = (int)(end - start);
+					return parse(file, map(start, length), 0, length, start, delimiter, layout);
+				}
+			}));
+		}
+	}
+
+	/** Get the next parsed block in file order.
+	 * @return The block or <code>null</code> if there is no more data.
+	 */
+	private RowBlock nextPart() throws IOException {
+		while (parts.isEmpty()) {
+			submit();
+			final Future<List<RowBlock>> f = pending.poll();
+			if (f == null)
+				return null;
+			try {
+				parts.addAll(f.get());
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException(e);
+			}
+			catch (ExecutionException e) {
+				if (e.getCause() instanceof IOException)
+					throw (IOException)e.getCause();
+				throw new IOException(e.getCause());
+			}
+		}
+		return parts.poll();
+	}
+
+	@Override
+	public int nextRows(RowBlock block) throws IOException {
+		if (pool == null)
+			start(block);
+		else if (!block.hasLayout(layout))
+			throw new IOException("all blocks must have the same layout");
+		block.clear();
+		while (!block.isFull()) {
+			if (part == null || partRow >= part.size) {
+				part = nextPart();
+				partRow = 0;
+				if (part == null)
+					break;
+			}
+			partRow += block.appendFrom(part, partRow);
+		}
+		return block.size;
+	}
+
+	@Override
+	public int getColumnCount() throws IOException {
+		return hasRow ? line.getCount() : columnCount;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (pool != null) {
+			pool.shutdownNow();
+			pool = null;
+		}
+		pending.clear();
+		parts.clear();
+		part = null;
+		rowData = null;
+		hasRow = false;
+		if (channel != null) {
+			final FileChannel c = channel;
+			channel = null;
+			c.close();
+		}
+	}
+
+	@Override
+	public TupleIO makeTupleIO(IloOplTupleSchemaDefinition schema) throws IOException {
+		try {
+			if (header == null)
+				return new TupleIO(schema);
+			return new TupleIO(schema, new TupleIO.TableMetaData() {
+				@Override
+				public int getColumnCount() { return header.length; }
+				@Override
+				public String getColumnName(int column) { return header[column]; }
+			});
+		}
+		catch (IloException e) {
+			throw new IOException(e);
+		}
+	}
+}
@@ -0,0 +1,206 @@
+//   Copyright 2020 IBM Corporation
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+package ilog.opl.externaldata.csv;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import ilog.opl.externaldata.RowBlock;
+
+/** A line of a CSV file that is split into fields.
+ * Fields are separated by a delimiter and may be enclosed in double quotes. Inside
+ * quoted fields a double quote is written as two double quotes. Text is UTF-8.
+ * Instances are not thread-safe, each thread must use its own instance.
+ */
+final class CsvLine {
+	private static final byte QUOTE = '"';
+
+	private final byte delimiter;
+	/** The data of the current line. */
+	private ByteBuffer data;
+	/** The number of fields in the current line. */
+	private int count = 0;
+	/** Start (inclusive) and end (exclusive) of each field in {@link #data}. */
+	private int[] starts = new int[16];
+	private int[] ends = new int[16];
+	/** Whether a field contains escaped quotes. */
+	private boolean[] escaped = new boolean[16];
+	/** Buffer for the bytes of a field that is converted to a string. */
+	private byte[] scratch = new byte[256];
+
+	public CsvLine(byte delimiter) {
+		this.delimiter = delimiter;
+	}
+
+	/** Get the number of fields in the current line. */
+	public int getCount() { return count; }
+
+	/** Split a line into fields.
+	 * @param data  The buffer that holds the line. Only absolute <code>get</code> methods are
+	 *              used, so its position and limit are not changed.
+	 * @param start Start of the line in <code>data</code>.
+	 * @param end   End of the line in <code>data</code> (excluding the line terminator).
+	 * @throws IOException if the line is malformed.
+	 */
+	public void split(ByteBuffer data, int start, int end) throws IOException {
+		this.data = data;
+		count = 0;
+		int p = start;
+		while (true) {
+			if (count == starts.length) {
+				starts = Arrays.copyOf(starts, 2 * count);
+				ends = Arrays.copyOf(ends, 2 * count);
+				escaped = Arrays.copyOf(escaped, 2 * count);
+			}
+			if (p < end && data.get(p) == QUOTE) {
+				int q = p + 1;
+				boolean esc = false;
+				while (true) {
+					if (q >= end)
+						throw new IOException("unterminated quoted field (line breaks in quoted fields are not supported)");
+					if (data.get(q) == QUOTE) {
+						if (q + 1 < end && data.get(q + 1) == QUOTE) {
+							esc = true;
+							q += 2;
+							continue;
+						}
+						break;
+					}
+					++q;
+				}
+				starts[count] = p + 1;
+				ends[count] = q;
+				escaped[count] = esc;
+				++count;
+				p = q + 1;
+				if (p < end && data.get(p) != delimiter)
+					throw new IOException("unexpected character after quoted field " + count);
+			}
+			else {
+				int q = p;
+				while (q < end && data.get(q) != delimiter)
+					++q;
+				starts[count] = p;
+				ends[count] = q;
+				escaped[count] = false;
+				++count;
+				p = q;
+			}
+			if (p >= end)
+				break;
+			++p; // skip delimiter
+		}
+	}
+
+	private void checkIndex(int index) throws IOException {
+		if (index < 0 || index >= count)
+			throw new IOException("field " + index + " does not exist, line has " + count + " fields");
+	}
+
+	/** Get field <code>index</code> as string. */
+	public String getString(int index) throws IOException {
+		checkIndex(index);
+		final int s = starts[index];
+		final int e = ends[index];
+		if (scratch.length < e - s)
+			scratch = new byte[e - s];
+		int n = 0;
+		for (int i = s; i < e; ++i) {
+			final byte b = data.get(i);
+			scratch[n++] = b;
+			if (b == QUOTE && escaped[index])
+				++i; // skip the second quote
+		}
+		return new String(scratch, 0, n, StandardCharsets.UTF_8);
+	}
+
+	/** Get field <code>index</code> as <code>int</code>. Empty fields are 0. */
+	public int getInt(int index) throws IOException {
+		checkIndex(index);
+		int s = starts[index];
+		int e = ends[index];
+		while (s < e && data.get(s) == ' ')
+			++s;
+		while (e > s && data.get(e - 1) == ' ')
+			--e;
+		if (s == e)
+			return 0;
+		final boolean negative = data.get(s) == '-';
+		int p = (negative || data.get(s) == '+') ? s + 1 : s;
+		if (p == e)
+			throw new IOException("'" + getString(index) + "' is not an integer");
+		long value = 0;
+		for (; p < e; ++p) {
+			final int d = data.get(p) - '0';
+			if (d < 0 || d > 9 || value > Integer.MAX_VALUE)
+				throw new IOException("'" + getString(index) + "' is not an integer");
+			value = value * 10 + d;
+		}
+		if (negative)
+			value = -value;
+		if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE)
+			throw new IOException("'" + getString(index) + "' is not an integer");
+		return (int)value;
+	}
+
+	/** Get field <code>index</code> as <code>double</code>. Empty fields are 0. */
+	public double getDouble(int index) throws IOException {
+		checkIndex(index);
+		final int s = starts[index];
+		final int e = ends[index];
+		// Plain integers with up to 15 digits are exact doubles, parse them directly.
+		if (e - s > 0 && e - s <= 15) {
+			long value = 0;
+			int p = s;
+			for (; p < e; ++p) {
+				final int d = data.get(p) - '0';
+				if (d < 0 || d > 9)
+					break;
+				value = value * 10 + d;
+			}
+			if (p == e)
+				return value;
+		}
+		if (scratch.length < e - s)
+			scratch = new byte[e - s];
+		for (int i = s; i < e; ++i)
+			scratch[i - s] = data.get(i);
+		final String text = new String(scratch, 0, e - s, StandardCharsets.ISO_8859_1).trim();
+		if (text.length() == 0)
+			return 0.0;
+		try {
+			return Double.parseDouble(text);
+		}
+		catch (NumberFormatException ex) {
+			throw new IOException("'" + getString(index) + "' is not a number");
+		}
+	}
+
+	/** Store the fields of this line as the next row of <code>block</code>. */
+	public void store(RowBlock block) throws IOException {
+		final int row = block.size;
+		final int slots = block.getSlotCount();
+		for (int s = 0; s < slots; ++s) {
+			final int col = block.columns[s];
+			switch (block.kinds[s]) {
+			case INT: block.ints[s][row] = getInt(col); break;
+			case NUM: block.nums[s][row] = getDouble(col); break;
+			case STR: block.strings[s][row] = getString(col); break;
+			}
+		}
+		++block.size;
+	}
+}
@@ -0,0 +1,413 @@
+//   Copyright 2020 IBM Corporation
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+package ilog.opl.externaldata.csv;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.GZIPOutputStream;
+
+import ilog.opl.externaldata.OutputRowIterator;
+import ilog.opl.externaldata.RowBlock;
+
+/** Write rows to a CSV file.
+ * Rows are formatted directly into a large buffer that is written to a file channel
+ * whenever it is full. Without compression this is a direct buffer.
+ *
+ * With gzip compression every full buffer is compressed as an independent gzip member
+ * on a pool of worker threads. The compressed members are written in order, and the
+ * concatenation is a valid gzip file.
+ *
+ * Data is written to a temporary file in the target directory. When the iterator is
+ * committed, the file is handed to the connection which moves it to its final name
+ * when the connection is committed.
+ */
+final class CsvOutputIterator implements OutputRowIterator {
+	/** Powers of ten that are exact doubles. */
+	private static final double[] POW10 = { 1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9 };
+	/** Doubles with an absolute value below this are exact integers. */
+	private static final double MAX_EXACT = 9007199254740992.0; // 2^53
+
+	private final CsvConnection connection;
+	private final File target;
+	private final File tmp;
+	private FileChannel channel;
+	private final byte delimiter;
+	/** Buffer into which rows are formatted. */
+	private ByteBuffer buffer;
+	/** Compression threads (<code>null</code> if data is not compressed). */
+	private ExecutorService pool = null;
+	private final int threads;
+	/** Buffers that are being compressed, in file order. */
+	private final ArrayDeque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+	/** Scratch space for formatting numbers. */
+	private final byte[] digits = new byte[32];
+	/** Values of the current row when written with the <code>set</code> functions. */
+	private RowBlock.Kind[] rowKinds = new RowBlock.Kind[8];
+	private int[] rowInts = new int[8];
+	private double[] rowNums = new double[8];
+	private String[] rowStrings = new String[8];
+	private int rowFields = 0;
+	private long rows = 0;
+	private final long startNanos = System.nanoTime();
+
+	/** Create a new iterator.
+	 * @param connection The connection that moves the file into place on commit.
+	 * @param target     The file to write.
+	 * @param delimiter  The field delimiter.
+	 * @param header     Column names to write as first line, or <code>null</code>.
+	 * @param bufferSize The size of the output buffer (and of compressed blocks).
+	 * @param gzip       Whether to compress the output with gzip.
+	 * @param threads    The number of threads that compress data.
+	 * @throws IOException if the file cannot be created.
+	 */
+	public CsvOutputIterator(CsvConnection connection, File target, byte delimiter, String[] header, int bufferSize, boolean gzip, int threads) throws IOException {
+		if (bufferSize <= 0)
+			throw new IllegalArgumentException("invalid buffer size " + bufferSize);
+		if (threads <= 0)
+			throw new IllegalArgumentException("invalid number of threads " + threads);
+		this.connection = connection;
+		this.target = target.getAbsoluteFile();
+		this.delimiter = delimiter;
+		this.threads = threads;
+		tmp = File.createTempFile(this.target.getName(), ".tmp", this.target.getParentFile());
+		boolean ok = false;
+		try {
+			channel = FileChannel.open(tmp.toPath(), StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+			if (gzip) {
+				buffer = ByteBuffer.wrap(new byte[bufferSize]);
+				pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						final Thread t = new Thread(r, "opldbsupport-gzip");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+			}
+			else
+				buffer = ByteBuffer.allocateDirect(bufferSize);
+			if (header != null) {
+				for (int i = 0; i < header.length; ++i) {
+					if (i > 0)
+						putByte(delimiter);
+					putString(header[i]);
+				}
+				putByte((byte)'\n');
+			}
+			ok = true;
+		}
+		finally {
+			if (!ok)
+				discard();
+		}
+	}
+
+	/** Write all bytes of <code>data</code> to the file. */
+	private void write(ByteBuffer data) throws IOException {
+		while (data.hasRemaining())
+			channel.write(data);
+	}
+
+	/** Compress <code>length</code> bytes of <code>data</code> as a gzip member. */
+	private static byte[] gzip(byte[] data, int length) throws IOException {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream(length / 4 + 64);
+		final GZIPOutputStream gz = new GZIPOutputStream(bytes, 64 * 1024);
+		gz.write(data, 0, length);
+		gz.close();
+		return bytes.toByteArray();
+	}
+
+	/** Write the oldest compressed block. */
+	private void writePending() throws IOException {
+		final Future<byte[]> f = pending.poll();
+		try {
+			write(ByteBuffer.wrap(f.get()));
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		}
+		catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException)e.getCause();
+			throw new IOException(e.getCause());
+		}
+	}
+
+	/** Write out (or hand over for compression) the content of {@link #buffer}. */
+	private void flush() throws IOException {
+		if (buffer.position() == 0)
+			return;
+		if (pool == null) {
+			buffer.flip();
+			write(buffer);
+			buffer.clear();
+			return;
+		}
+		final byte[] data = buffer.array();
+		final int length = buffer.position();
+		buffer = ByteBuffer.wrap(new byte[data.length]);
+		pending.add(pool.submit(new Callable<byte[]>() {
+			@Override
+			public byte[] call() throws IOException {
+				return gzip(data, length);
+			}
+		}));
+		while (pending.size() > 2 * threads)
+			writePending();
+	}
+
+	private void putByte(byte b) throws IOException {
+		if (!buffer.hasRemaining())
+			flush();
+		buffer.put(b);
+	}
+
+	private void putBytes(byte[] bytes, int offset, int length) throws IOException {
+		if (buffer.remaining() < length)
+			flush();
+		if (buffer.remaining() < length) {
+			for (int i = 0; i < length; ++i)
+				putByte(bytes[offset + i]);
+		}
+		else
+			buffer.put(bytes, offset, length);
+	}
+
+	/** Write a string, quoted if necessary. */
+	private void putString(String s) throws IOException {
+		if (s == null)
+			return;
+		final int n = s.length();
+		boolean quote = false;
+		boolean ascii = true;
+		for (int i = 0; i < n; ++i) {
+			final char c = s.charAt(i);
+			if (c == delimiter || c == '"' || c == '\n' || c == '\r')
+				quote = true;
+			else if (c >= 0x80)
+				ascii = false;
+		}
+		if (quote)
+			putByte((byte)'"');
+		if (ascii) {
+			for (int i = 0; i < n; ++i) {
+				final char c = s.charAt(i);
+				if (c == '"')
+					putByte((byte)'"');
+				putByte((byte)c);
+			}
+		}
+		else {
+			// Multi-byte UTF-8 sequences never contain a quote.
+			for (byte b : s.getBytes(StandardCharsets.UTF_8)) {
+				if (b == '"')
+					putByte((byte)'"');
+				putByte(b);
+			}
+		}
+		if (quote)
+			putByte((byte)'"');
+	}
+
+	/** Format <code>value</code> into the end of {@link #digits}.
+	 * @param value    The absolute value to format.
+	 * @param decimals The number of digits after the decimal point.
+	 * @return The index of the first character in {@link #digits}.
+	 */
+	private int formatDigits(long value, int decimals) {
+		int p = digits.length;
+		int n = 0;
+		do {
+			if (n == decimals && decimals > 0)
+				digits[--p] = '.';
+			digits[--p] = (byte)('0' + value % 10);
+			value /= 10;
+			++n;
+		} while (value != 0 || n <= decimals);
+		return p;
+	}
+
+	private void putInt(int value) throws IOException {
+		final long v = value;
+		int p = formatDigits(Math.abs(v), 0);
+		if (v < 0)
+			digits[--p] = '-';
+		putBytes(digits, p, digits.length - p);
+	}
+
+	/** Write a double with as few digits as possible.
+	 * Values that can be written with at most nine decimals are formatted directly from
+	 * the scaled integer. Scaling back the integer reproduces the value exactly, so the
+	 * text reads back as the same double. Other values use {@link Double#toString(double)}.
+	 */
+	private void putDouble(double value) throws IOException {
+		if (!Double.isNaN(value) && !Double.isInfinite(value) && (value != 0.0 || 1.0 / value > 0)) {
+			for (int k = 0; k < POW10.length; ++k) {
+				final double scaled = Math.rint(value * POW10[k]);
+				if (Math.abs(scaled) >= MAX_EXACT)
+					break;
+				if (scaled / POW10[k] == value) {
+					int p = formatDigits(Math.abs((long)scaled), k);
+					if (scaled < 0)
+						digits[--p] = '-';
+					putBytes(digits, p, digits.length - p);
+					return;
+				}
+			}
+		}
+		final String s = Double.toString(value);
+		for (int i = 0; i < s.length(); ++i)
+			putByte((byte)s.charAt(i));
+	}
+
+	/** Get room for field <code>index</code> in the current row. */
+	private void ensureField(int index) throws IOException {
+		if (index < 0)
+			throw new IOException("invalid field index " + index);
+		if (index >= rowKinds.length) {
+			final int n = Math.max(index + 1, 2 * rowKinds.length);
+			rowKinds = Arrays.copyOf(rowKinds, n);
+			rowInts = Arrays.copyOf(rowInts, n);
+			rowNums = Arrays.copyOf(rowNums, n);
+			rowStrings = Arrays.copyOf(rowStrings, n);
+		}
+		rowFields = Math.max(rowFields, index + 1);
+	}
+
+	@Override
+	public void setInt(int index, int value) throws IOException {
+		ensureField(index);
+		rowKinds[index] = RowBlock.Kind.INT;
+		rowInts[index] = value;
+	}
+	@Override
+	public void setDouble(int index, double value) throws IOException {
+		ensureField(index);
+		rowKinds[index] = RowBlock.Kind.NUM;
+		rowNums[index] = value;
+	}
+	@Override
+	public void setString(int index, String value) throws IOException {
+		ensureField(index);
+		rowKinds[index] = RowBlock.Kind.STR;
+		rowStrings[index] = value;
+	}
+	@Override
+	public void completeRow() throws IOException {
+		for (int i = 0; i < rowFields; ++i) {
+			if (i > 0)
+				putByte(delimiter);
+			if (rowKinds[i] != null) {
+				switch (rowKinds[i]) {
+				case INT: putInt(rowInts[i]); break;
+				case NUM: putDouble(rowNums[i]); break;
+				case STR: putString(rowStrings[i]); break;
+				}
+			}
+		}
+		putByte((byte)'\n');
+		Arrays.fill(rowKinds, 0, rowFields, null);
+		Arrays.fill(rowStrings, 0, rowFields, null);
+		rowFields = 0;
+		++rows;
+	}
+
+	@Override
+	public void writeRows(RowBlock block) throws IOException {
+		// Find the slot for each column. Columns without a slot are left empty.
+		final int slots = block.getSlotCount();
+		int fields = 0;
+		for (int s = 0; s < slots; ++s)
+			fields = Math.max(fields, block.columns[s] + 1);
+		final int[] slotOf = new int[fields];
+		Arrays.fill(slotOf, -1);
+		for (int s = 0; s < slots; ++s)
+			slotOf[block.columns[s]] = s;
+		for (int row = 0; row < block.size; ++row) {
+			for (int c = 0; c < fields; ++c) {
+				if (c > 0)
+					putByte(delimiter);
+				final int s = slotOf[c];
+				if (s < 0)
+					continue;
+				switch (block.kinds[s]) {
+				case INT: putInt(block.ints[s][row]); break;
+				case NUM: putDouble(block.nums[s][row]); break;
+				case STR: putString(block.strings[s][row]); break;
+				}
+			}
+			putByte((byte)'\n');
+		}
+		rows += block.size;
+	}
+
+	@Override
+	public void commit() throws IOException {
+		if (channel == null)
+			return;
+		flush();
+		while (!pending.isEmpty())
+			writePending();
+		channel.force(false);
+		channel.close();
+		channel = null;
+		if (pool != null) {
+			pool.shutdown();
+			pool = null;
+		}
+		connection.addPending(tmp, target);
+		CsvConnection.traceln("CsvOutputIterator: wrote " + rows + " rows for " + target + " in " + ((System.nanoTime() - startNanos) / 1000000) + " ms");
+	}
+
+	/** Stop writing and remove the temporary file. */
+	private void discard() throws IOException {
+		if (pool != null) {
+			pool.shutdownNow();
+			pool = null;
+		}
+		pending.clear();
+		if (channel != null) {
+			try {
+				channel.close();
+			}
+			finally {
+				channel = null;
+				tmp.delete();
+			}
+		}
+		else
+			tmp.delete();
+	}
+
+	@Override
+	public void close() throws IOException {
+		// If we were not committed then the data is dropped.
+		if (channel != null)
+			discard();
+	}
+}
@@ -0,0 +1,324 @@
+//   Copyright 2020 IBM Corporation
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+package ilog.opl.externaldata.excel;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.poi.openxml4j.exceptions.OpenXML4JException;
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.ss.usermodel.DataFormatter;
+import org.apache.poi.ss.util.CellAddress;
+import org.apache.poi.ss.util.CellRangeAddress;
+import org.apache.poi.xssf.binary.XSSFBParseException;
+import org.apache.poi.xssf.binary.XSSFBParser;
+import org.apache.poi.xssf.binary.XSSFBReader;
+import org.apache.poi.xssf.binary.XSSFBSharedStringsTable;
+import org.apache.poi.xssf.binary.XSSFBSheetHandler;
+import org.apache.poi.xssf.binary.XSSFBStylesTable;
+import org.apache.poi.xssf.eventusermodel.XSSFSheetXMLHandler.SheetContentsHandler;
+import org.apache.poi.xssf.usermodel.XSSFComment;
+import org.xml.sax.SAXException;
+
+/** Read-only access to an XLSB (binary) workbook.
+ * Sheets are parsed record by record with POI's event based binary reader and only
+ * the cells in requested ranges are kept. Parsing of a sheet stops as soon as the last
+ * row of all requested ranges was seen.
+ * POI does not expose the defined names of XLSB workbooks, so the name records of
+ * workbook.bin are decoded here. Only names that refer to a single cell or range are
+ * supported.
+ * The binary reader reports boolean and error cells as text, so they are read as strings.
+ */
+final class BinaryWorkbook extends ReadOnlyWorkbook {
+	/* Record types in workbook.bin (see [MS-XLSB] 2.3.2). */
+	private static final int BRT_NAME = 39;
+	private static final int BRT_BOOK_VIEW = 135;
+	private static final int BRT_BUNDLE_SH = 156;
+	private static final int BRT_EXTERN_SHEET = 362;
+	/* Parsed formula tokens (without class bits) for 3D references. */
+	private static final int PTG_REF_3D = 0x1A;
+	private static final int PTG_AREA_3D = 0x1B;
+
+	/** Prefix with which {@link NumberFormatter} marks numeric cell values. */
+	private static final char NUMBER_TAG = '\u0000';
+
+	private OPCPackage pkg;
+	private final XSSFBReader reader;
+	private XSSFBSharedStringsTable sharedStrings = null;
+	private XSSFBStylesTable styles = null;
+	/** Relationship ids of the sheets in workbook order. */
+	private final List<String> sheetIds = new ArrayList<String>();
+
+	/** Read a workbook from a package.
+	 * The package is closed when the workbook is closed or if the constructor fails.
+	 * @param pkg A package that was opened read-only.
+	 * @throws IOException if the package does not contain an XLSB workbook.
+	 */
+	public BinaryWorkbook(OPCPackage pkg) throws IOException {
+		try {
+			this.pkg = pkg;
+			reader = new XSSFBReader(pkg);
+			final WorkbookParser parser;
+			final InputStream wb = reader.getWorkbookData();
+			try {
+				parser = new WorkbookParser(wb);
+				parser.parse();
+			}
+			finally {
+				wb.close();
+			}
+			if (sheetNames.isEmpty())
+				throw new IOException("workbook has no sheets");
+			parser.resolveNames();
+		}
+		catch (OpenXML4JException e) {
+			close();
+			throw new IOException(e);
+		}
+		catch (XSSFBParseException e) {
+			close();
+			throw new IOException(e);
+		}
+		catch (IOException e) {
+			close();
+			throw e;
+		}
+		catch (RuntimeException e) {
+			close();
+			throw e;
+		}
+	}
+
+	@Override
+	protected void scanSheet(int sheetIndex, CellGrid[] grids) throws IOException {
+		try {
+			if (styles == null)
+				styles = reader.getXSSFBStylesTable();
+			if (sharedStrings == null)
+				sharedStrings = new XSSFBSharedStringsTable(pkg);
+			final InputStream in = reader.getSheet(sheetIds.get(sheetIndex));
+			try {
+				new XSSFBSheetHandler(in, styles, null, sharedStrings, new SheetHandler(grids), new NumberFormatter(), false).parse();
+			}
+			catch (StopParsing e) {
+				// Handler has all the data it needs.
+			}
+			finally {
+				in.close();
+			}
+		}
+		catch (OpenXML4JException e) {
+			throw new IOException(e);
+		}
+		catch (SAXException e) {
+			throw new IOException(e);
+		}
+		catch (XSSFBParseException e) {
+			throw new IOException(e);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		sharedStrings = null;
+		styles = null;
+		super.close();
+		if (pkg != null) {
+			// The package is read-only, so revert() closes it without any attempt to save.
+			pkg.revert();
+			pkg = null;
+		}
+	}
+
+	/** Read a 32-bit little endian integer. */
+	private static int readInt(byte[] data, int offset) {
+		return (data[offset] & 0xff) | (data[offset + 1] & 0xff) << 8 |
+		       (data[offset + 2] & 0xff) << 16 | (data[offset + 3] & 0xff) << 24;
+	}
+
+	/** Read a 16-bit little endian unsigned integer. */
+	private static int readShort(byte[] data, int offset) {
+		return (data[offset] & 0xff) | (data[offset + 1] & 0xff) << 8;
+	}
+
+	/** Read a wide string (character count followed by UTF-16LE characters).
+	 * @param out Receives the string.
+	 * @return The offset after the string.
+	 */
+	private static int readWideString(byte[] data, int offset, StringBuilder out) {
+		final int chars = readInt(data, offset);
+		offset += 4;
+		if (chars < 0) // null string
+			return offset;
+		out.append(new String(data, offset, 2 * chars, StandardCharsets.UTF_16LE));
+		return offset + 2 * chars;
+	}
+
+	/** A defined name as stored in workbook.bin, before external sheet references are resolved. */
+	private static final class RawName {
+		public final String name;
+		public final int localSheet;
+		/** Index into the external sheet table. */
+		public final int xti;
+		public final CellRangeAddress cells;
+		public RawName(String name, int localSheet, int xti, CellRangeAddress cells) {
+			this.name = name;
+			this.localSheet = localSheet;
+			this.xti = xti;
+			this.cells = cells;
+		}
+	}
+
+	/** Collects sheets, defined names and the active sheet from workbook.bin. */
+	private final class WorkbookParser extends XSSFBParser {
+		/** First sheet of each external sheet reference. */
+		private final List<Integer> externSheets = new ArrayList<Integer>();
+		private final List<RawName> rawNames = new ArrayList<RawName>();
+		public WorkbookParser(InputStream in) {
+			super(in);
+		}
+		@Override
+		public void handleRecord(int recordType, byte[] data) throws XSSFBParseException {
+			switch (recordType) {
+			case BRT_BUNDLE_SH: {
+				// hsState, iTabID, strRelID, strName
+				final StringBuilder relId = new StringBuilder();
+				final StringBuilder name = new StringBuilder();
+				readWideString(data, readWideString(data, 8, relId), name);
+				sheetIds.add(relId.toString());
+				sheetNames.add(name.toString());
+				break;
+			}
+			case BRT_BOOK_VIEW:
+				// xWn, yWn, dxWn, dyWn, iTabRatio, itabFirst, itabCur
+				activeSheet = readInt(data, 24);
+				break;
+			case BRT_EXTERN_SHEET: {
+				// cXti followed by (iSupBook, itabFirst, itabLast) triples
+				final int count = readInt(data, 0);
+				for (int i = 0; i < count; ++i)
+					externSheets.add(readInt(data, 4 + 12 * i + 4));
+				break;
+			}
+			case BRT_NAME:
+				parseName(data);
+				break;
+			default:
+				break;
+			}
+		}
+
+		/** Decode a name record if its formula is a single 3D reference. */
+		private void parseName(byte[] data) {
+			// flags (4 bytes), chKey (1 byte), itab, name, formula
+			final int itab = readInt(data, 5);
+			final StringBuilder name = new StringBuilder();
+			int offset = readWideString(data, 9, name);
+			final int cce = readInt(data, offset);
+			offset += 4;
+			if (cce < 1 || offset + cce > data.length)
+				return;
+			final int ptg = data[offset] & 0x1f;
+			CellRangeAddress cells = null;
+			if (ptg == PTG_AREA_3D && cce == 15) {
+				// ixti, rowFirst, rowLast, colFirst, colLast (columns have relative flags in the high bits)
+				cells = new CellRangeAddress(readInt(data, offset + 3), readInt(data, offset + 7),
+				                             readShort(data, offset + 11) & 0x3fff, readShort(data, offset + 13) & 0x3fff);
+			}
+			else if (ptg == PTG_REF_3D && cce == 9) {
+				// ixti, row, col
+				final int row = readInt(data, offset + 3);
+				final int col = readShort(data, offset + 7) & 0x3fff;
+				cells = new CellRangeAddress(row, row, col, col);
+			}
+			if (cells != null)
+				rawNames.add(new RawName(name.toString(), itab == 0xffffffff ? -1 : itab, readShort(data, offset + 1), cells));
+		}
+
+		/** Turn the collected names into definitions of the form <code>'Sheet'!A1:B2</code>. */
+		public void resolveNames() {
+			for (RawName raw : rawNames) {
+				if (raw.xti >= externSheets.size())
+					continue;
+				final int sheet = externSheets.get(raw.xti);
+				if (sheet < 0 || sheet >= sheetNames.size())
+					continue;
+				final String sheetName = "'" + sheetNames.get(sheet).replace("'", "''") + "'";
+				addName(raw.name, new DefinedName(raw.localSheet, sheetName + "!" + raw.cells.formatAsString()));
+			}
+		}
+	}
+
+	/** Formats numeric cells so that their exact value can be recovered.
+	 * The binary reader only reports formatted text, so numbers are tagged with
+	 * {@link #NUMBER_TAG} to distinguish them from string cells.
+	 */
+	private static final class NumberFormatter extends DataFormatter {
+		@Override
+		public String formatRawCellContents(double value, int formatIndex, String formatString, boolean use1904Windowing) {
+			return NUMBER_TAG + Double.toString(value);
+		}
+	}
+
+	/** Thrown by {@link SheetHandler} to end parsing early. */
+	@SuppressWarnings("serial")
+	private static final class StopParsing extends RuntimeException {
+		@Override
+		public synchronized Throwable fillInStackTrace() { return this; }
+	}
+
+	/** Collects the cells of one or more ranges from a sheet. */
+	private static final class SheetHandler implements SheetContentsHandler {
+		private final CellGrid[] grids;
+		/** The last row in any of the grids. */
+		private final int lastRow;
+		public SheetHandler(CellGrid[] grids) {
+			this.grids = grids;
+			int last = -1;
+			for (CellGrid g : grids)
+				last = Math.max(last, g.firstRow + g.rows - 1);
+			this.lastRow = last;
+		}
+		@Override
+		public void startRow(int rowNum) {
+			if (rowNum > lastRow)
+				throw new StopParsing();
+		}
+		@Override
+		public void endRow(int rowNum) {}
+		@Override
+		public void cell(String cellReference, String formattedValue, XSSFComment comment) {
+			if (formattedValue == null)
+				return;
+			final CellAddress addr = new CellAddress(cellReference);
+			final int row = addr.getRow();
+			final int col = addr.getColumn();
+			final boolean numeric = formattedValue.length() > 0 && formattedValue.charAt(0) == NUMBER_TAG;
+			final double value = numeric ? Double.parseDouble(formattedValue.substring(1)) : 0.0;
+			for (CellGrid g : grids) {
+				if (!g.contains(row, col))
+					continue;
+				if (numeric)
+					g.setNumeric(row, col, CellGrid.NUMERIC, value);
+				else
+					g.setString(row, col, CellGrid.STRING, formattedValue);
+			}
+		}
+		@Override
+		public void headerFooter(String text, boolean isHeader, String tagName) {}
+	}
+}
@@ -0,0 +1,191 @@
+//   Copyright 2020 IBM Corporation
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+package ilog.opl.externaldata.excel;
+
+import java.io.IOException;
+
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.CellType;
+import org.apache.poi.ss.usermodel.CellValue;
+import org.apache.poi.ss.usermodel.FormulaEvaluator;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.util.CellRangeAddress;
+import org.apache.poi.ss.util.CellReference;
+
+/** The values of a rectangular range of cells, held in memory.
+ * Rows are allocated only when a cell in them is set, so memory is proportional to
+ * the populated part of the range. Cells that were never set are blank.
+ */
+final class CellGrid {
+	/* Types of cells. */
+	static final byte BLANK = 0;
+	static final byte NUMERIC = 1;
+	static final byte STRING = 2;
+	static final byte BOOLEAN = 3;
+	static final byte ERROR = 4;
+
+	/** Absolute index of the first row in the range. */
+	final int firstRow;
+	/** Absolute index of the first column in the range. */
+	final int firstCol;
+	/** Number of rows in the range. */
+	final int rows;
+	/** Number of columns in the range. */
+	final int cols;
+	/** Per row the type of each cell, <code>null</code> for rows without data. */
+	private final byte[][] types;
+	/** Per row the numeric value of each cell. */
+	private final double[][] nums;
+	/** Per row the string value of each cell. */
+	private final String[][] strings;
+	/** Number of formulas that were evaluated while filling this grid. */
+	int formulas = 0;
+
+	/** Create a grid in which all cells are blank.
+	 * @param cells The range covered by the grid.
+	 */
+	public CellGrid(CellRangeAddress cells) {
+		this.firstRow = cells.getFirstRow();
+		this.firstCol = cells.getFirstColumn();
+		this.rows = 1 + cells.getLastRow() - firstRow;
+		this.cols = 1 + cells.getLastColumn() - firstCol;
+		this.types = new byte[rows][];
+		this.nums = new double[rows][];
+		this.strings = new String[rows][];
+	}
+
+	/** Create a grid from the cells in a sheet.
+	 * Each row of the range is looked up only once.
+	 * @param sheet     The sheet to read from.
+	 * @param cells     The range to read.
+	 * @param evaluator If not <code>null</code> then formulas are evaluated with this,
+	 *                  otherwise the result cached in the workbook is used.
+	 * @return The values of all cells in <code>cells</code>.
+	 */
+	public static CellGrid fromSheet(Sheet sheet, CellRangeAddress cells, FormulaEvaluator evaluator) {
+		final CellGrid grid = new CellGrid(cells);
+		for (int r = 0; r < grid.rows; ++r) {
+			final Row row = sheet.getRow(grid.firstRow + r);
+			if (row == null)
+				continue;
+			for (int c = 0; c < grid.cols; ++c) {
+				final Cell cell = row.getCell(grid.firstCol + c);
+				if (cell == null)
+					continue;
+				if (evaluator != null && cell.getCellType() == CellType.FORMULA) {
+					grid.set(evaluator.evaluate(cell), grid.firstRow + r, grid.firstCol + c);
+					++grid.formulas;
+				}
+				else
+					grid.set(cell, grid.firstRow + r, grid.firstCol + c);
+			}
+		}
+		return grid;
+	}
+
+	/** Copy the value of <code>cell</code> to the absolute position (<code>row</code>, <code>col</code>). */
+	void set(Cell cell, int row, int col) {
+		CellType type = cell.getCellType();
+		if (type == CellType.FORMULA)
+			type = cell.getCachedFormulaResultType();
+		switch (type) {
+		case NUMERIC: setNumeric(row, col, NUMERIC, cell.getNumericCellValue()); break;
+		case STRING: setString(row, col, STRING, cell.getRichStringCellValue().getString()); break;
+		case BOOLEAN: setNumeric(row, col, BOOLEAN, cell.getBooleanCellValue() ? 1.0 : 0.0); break;
+		case ERROR: setString(row, col, ERROR, "#ERROR"); break;
+		default: break; // blank
+		}
+	}
+
+	/** Copy an evaluated formula result to the absolute position (<code>row</code>, <code>col</code>). */
+	void set(CellValue value, int row, int col) {
+		switch (value.getCellType()) {
+		case NUMERIC: setNumeric(row, col, NUMERIC, value.getNumberValue()); break;
+		case STRING: setString(row, col, STRING, value.getStringValue()); break;
+		case BOOLEAN: setNumeric(row, col, BOOLEAN, value.getBooleanValue() ? 1.0 : 0.0); break;
+		case ERROR: setString(row, col, ERROR, "#ERROR"); break;
+		default: break; // blank
+		}
+	}
+
+	/** Test whether the cell at absolute position (<code>row</code>, <code>col</code>) is in this grid. */
+	public boolean contains(int row, int col) {
+		return row >= firstRow && row - firstRow < rows && col >= firstCol && col - firstCol < cols;
+	}
+
+	/** Set a numeric (or boolean) cell. Row and column are absolute. */
+	public void setNumeric(int row, int col, byte type, double value) {
+		final int r = row - firstRow;
+		final int c = col - firstCol;
+		allocate(r);
+		types[r][c] = type;
+		nums[r][c] = value;
+		if (strings[r] != null)
+			strings[r][c] = null;
+	}
+
+	/** Set a string (or error) cell. Row and column are absolute. */
+	public void setString(int row, int col, byte type, String value) {
+		final int r = row - firstRow;
+		final int c = col - firstCol;
+		allocate(r);
+		if (strings[r] == null)
+			strings[r] = new String[cols];
+		types[r][c] = type;
+		strings[r][c] = value;
+	}
+
+	private void allocate(int r) {
+		if (types[r] == null) {
+			types[r] = new byte[cols];
+			nums[r] = new double[cols];
+		}
+	}
+
+	/** Format the absolute address of a cell for error messages. */
+	private String cellName(int r, int c) {
+		return new CellReference(firstRow + r, firstCol + c).formatAsString();
+	}
+
+	/** Get the numeric value of a cell. Row and column are relative to the grid.
+	 * Blank cells have value 0.
+	 * @throws IOException if the cell is not numeric.
+	 */
+	public double getDouble(int r, int c) throws IOException {
+		final byte[] t = types[r];
+		if (t == null)
+			return 0.0;
+		switch (t[c]) {
+		case BLANK: return 0.0;
+		case NUMERIC: return nums[r][c];
+		default: throw new IOException("cell " + cellName(r, c) + " is not numeric");
+		}
+	}
+
+	/** Get the string value of a cell. Row and column are relative to the grid.
+	 * Blank cells have value "".
+	 * @throws IOException if the cell is not a string.
+	 */
+	public String getString(int r, int c) throws IOException {
+		final byte[] t = types[r];
+		if (t == null)
+			return "";
+		switch (t[c]) {
+		case BLANK: return "";
+		case STRING: return strings[r][c];
+		default: throw new IOException("cell " + cellName(r, c) + " is not a string");
+		}
+	}
+}
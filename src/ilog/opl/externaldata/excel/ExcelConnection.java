@@ -17,19 +17,37 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 
 import org.apache.poi.hssf.usermodel.HSSFWorkbook;
 import org.apache.poi.hssf.OldExcelFormatException;
-import org.apache.poi.poifs.filesystem.OfficeXmlFileException;
+import org.apache.poi.poifs.filesystem.FileMagic;
 import org.apache.poi.poifs.filesystem.POIFSFileSystem;
 import org.apache.poi.ss.util.CellAddress;
 import org.apache.poi.ss.util.CellRangeAddress;
 import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.FormulaEvaluator;
 import org.apache.poi.ss.usermodel.Name;
 import org.apache.poi.ss.usermodel.Row;
 import org.apache.poi.ss.usermodel.Sheet;
 import org.apache.poi.ss.usermodel.Workbook;
 import org.apache.poi.openxml4j.exceptions.InvalidFormatException;
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.opc.PackageAccess;
+import org.apache.poi.openxml4j.opc.PackageRelationshipCollection;
+import org.apache.poi.openxml4j.opc.PackageRelationshipTypes;
+import org.apache.poi.xssf.streaming.SXSSFSheet;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
 import org.apache.poi.xssf.usermodel.XSSFWorkbook;
 
 import ilog.concert.IloException;
@@ -39,7 +57,9 @@ import ilog.opl.dbsupport.DataBaseDataHandler;
 import ilog.opl.dbsupport.DataBaseDataHandler.ConnectionInfo;
 import ilog.opl.externaldata.DataConnection;
 import ilog.opl.externaldata.InputRowIterator;
+import ilog.opl.externaldata.Options;
 import ilog.opl.externaldata.OutputRowIterator;
+import ilog.opl.externaldata.RowBlock;
 import ilog.opl.externaldata.TupleIO;
 
 /** Data connection that is backed up by an Excel workbook.
@@ -51,19 +71,107 @@ import ilog.opl.externaldata.TupleIO;
  * <code>^T</code> to the range. This will transpose the range before processing
  * it so that you will actually get a column major order. This is only supported
  * when reading data.
+ *
+ * Connections that are only used for reading can be opened with option
+ * {@link #OPTION_STREAMING}. XLSX workbooks are then not loaded into memory.
+ * Instead, the sheet XML is parsed on demand and only the requested ranges are kept.
+ *
+ * When publishing large amounts of data to XLSX workbooks, option {@link #OPTION_WRITE_WINDOW}
+ * keeps only a window of rows in memory and flushes the other rows to temporary files.
+ * With option {@link #OPTION_INCREMENTAL} only the modified parts of an XLSX workbook
+ * are regenerated when it is written back.
+ * The format of a workbook is detected from the file content. XLSX workbooks that are
+ * only read in streaming mode are opened read-only, so they cannot be used for
+ * publishing later on.
+ * XLSB (binary) workbooks can only be read. They are never loaded into memory but always
+ * read like XLSX workbooks in streaming mode.
+ *
+ * Option {@link #OPTION_EVALUATE_FORMULAS} evaluates formulas in ranges that are read
+ * instead of using the results cached in the workbook.
+ *
+ * A rollback throws away the in-memory workbook, so that rolled back rows are never
+ * written or read. The workbook must then be loaded again from the file.
  */
 public class ExcelConnection implements DataConnection {
+
+	private static boolean traceEnabled = false;
+
+	public static boolean setTraceEnabled(boolean set) {
+		final boolean old = traceEnabled;
+		traceEnabled = set;
+		return old;
+	}
+
+	public static void traceln(String s) {
+		if (traceEnabled)
+			System.err.println(s);
+	}
+
+	/** Option to read XLSX workbooks with a streaming parser instead of loading them.
+	 * This only applies to connections that are opened for reading.
+	 */
+	public static final String OPTION_STREAMING = "streaming";
+	/** Option to write rows through a sliding window of this many rows.
+	 * Rows that drop out of the window are flushed to a temporary file. All existing
+	 * rows from the first row of the target range on are removed from the sheet.
+	 * This can be given with the connection or with a publish statement.
+	 */
+	public static final String OPTION_WRITE_WINDOW = "writeWindow";
+	/** Option to write back XLSX workbooks incrementally.
+	 * Only the sheets to which data was published and the shared strings are regenerated,
+	 * everything else is copied unchanged from the original file. See {@link IncrementalWriter}.
+	 */
+	public static final String OPTION_INCREMENTAL = "incremental";
+	/** Option to evaluate the formulas in a range before it is read.
+	 * All formulas in the range are evaluated once, before the first row is returned.
+	 * Results are cached by a formula evaluator that is shared by all ranges read from the
+	 * workbook, so cells referenced from many formulas are evaluated only once. Cached
+	 * results are dropped whenever data is published to the workbook.
+	 * This can be given with the connection or with a read statement. It cannot be
+	 * combined with {@link #OPTION_STREAMING}.
+	 */
+	public static final String OPTION_EVALUATE_FORMULAS = "evaluateFormulas";
+
 	/** Write back data to disk, depending on Excel format type. */
 	private interface WriteBack {
-		public void write() throws IOException;
+		/** Write the workbook to <code>out</code>. */
+		public void write(OutputStream out) throws IOException;
 	}
 
 	/** The file that contains the workbook. */
 	private final File file;
 	/** The workbook read from the file. */
 	private Workbook wb;
+	/** The workbook if it is read in streaming mode (in that case {@link #wb} is <code>null</code>). */
+	private ReadOnlyWorkbook streaming;
 	/** How to write back data to the workbook (depends on the Excel version). */
 	private WriteBack writeBack;
+	/** Whether data was published to the workbook since it was last written. */
+	private boolean dirty = false;
+	/** Options for this connection. */
+	private final Options options;
+	/** Streaming view of {@link #wb} for writing, created on demand. */
+	private SXSSFWorkbook sxssf = null;
+	/** First row written through {@link #sxssf} by sheet index. Existing rows from that
+	 * row on are only removed from {@link #wb} when the workbook is written.
+	 */
+	private final Map<Integer, Integer> streamedSheets = new HashMap<Integer, Integer>();
+	/** Whether the workbook is written back incrementally. */
+	private final boolean incremental;
+	/** Sheets to which rows were written through {@link #wb}. */
+	private final Set<Integer> modifiedSheets = new HashSet<Integer>();
+	/** Modification time of {@link #file} when the workbook was loaded or last written. */
+	private long loadedModified;
+	/** Evaluator for {@link #OPTION_EVALUATE_FORMULAS}, created on demand.
+	 * It caches formula results, so it is dropped when cells are written.
+	 */
+	private FormulaEvaluator evaluator = null;
+	/** Total time spent evaluating formulas. */
+	private long evaluationNanos = 0;
+	/** Whether the workbook was thrown away since it no longer matches the file.
+	 * This happens on rollback and after rows were streamed to the file.
+	 */
+	private boolean discarded = false;
 	/** Create a new connection with the specified filename.
 	 * @param filename The name of the file that contains the workbook.
 	 * @param write <code>true</code> if the connection is opened for writing. In this
@@ -71,8 +179,23 @@ public class ExcelConnection implements DataConnection {
 	 * @throws IOException If the workbook cannot be created from the file.
 	 */
 	public ExcelConnection(String filename, boolean write) throws IOException {
+		this(filename, write, Options.EMPTY);
+	}
+	/** Create a new connection with the specified filename.
+	 * @param filename The name of the file that contains the workbook.
+	 * @param write <code>true</code> if the connection is opened for writing. In this
+	 *              case the constructor will create the file if it does not yet exist.
+	 * @param options Options for the connection.
+	 * @throws IOException If the workbook cannot be created from the file.
+	 */
+	public ExcelConnection(String filename, boolean write, Options options) throws IOException {
 		file = new File(filename);
+		this.options = options;
+		this.incremental = options.getBoolean(OPTION_INCREMENTAL, false);
+		this.loadedModified = file.lastModified();
 
+		if (options.getBoolean(OPTION_STREAMING, false) && options.getBoolean(OPTION_EVALUATE_FORMULAS, false))
+			throw new IllegalArgumentException("options " + OPTION_STREAMING + " and " + OPTION_EVALUATE_FORMULAS + " cannot be combined");
 		if (write && !file.exists()) {
 			// For output create the file if it does not yet exist.
 			// Note that this does not create any sheets, so sheet names cannot be used,
@@ -82,84 +205,125 @@ public class ExcelConnection implements DataConnection {
 			final FileOutputStream empty = new FileOutputStream(file);
 			xssfWb.write(empty);
 			empty.close();
+			loadedModified = file.lastModified();
 		}
 
-		POIFSFileSystem fs = null;
+		// Pick the driver from the file header instead of trying one after the other.
+		final FileMagic magic;
+		final InputStream header = FileMagic.prepareToCheckMagic(new FileInputStream(file));
 		try {
-			// Both the POIFSFileSystem and the HSSFWorkbook constructor may raise
-			// an exception in case the Excel format does not match.
-			fs = new POIFSFileSystem(file);
-			final HSSFWorkbook hssfWb = new HSSFWorkbook(fs);
-			wb = hssfWb;
-			writeBack = new WriteBack() {
-				@Override
-				public void write() throws IOException {
-					hssfWb.write();
-				}
-			};
-			fs = null; // mark success for finally block
-			return;
-		}
-		catch (OldExcelFormatException e) {
-			// This exception is expected, we ignore it and try to open other format below.
-			System.out.println(filename + " looks like an old Excel format file, trying different driver");
-		}
-		catch (OfficeXmlFileException e) {
-			// This exception is expected, we ignore it and try to open other format below.
-			System.out.println(filename + " looks like an XML Excel file, trying different driver");
+			magic = FileMagic.valueOf(header);
 		}
 		finally {
-			if (fs != null)
+			header.close();
+		}
+		if (magic == FileMagic.OLE2) {
+			if (options.getBoolean(OPTION_STREAMING, false))
+				System.out.println(filename + " is not an XML Excel file, cannot stream it");
+			final POIFSFileSystem fs = new POIFSFileSystem(file);
+			try {
+				final HSSFWorkbook hssfWb = new HSSFWorkbook(fs);
+				wb = hssfWb;
+				writeBack = new WriteBack() {
+					@Override
+					public void write(OutputStream out) throws IOException {
+						hssfWb.write(out);
+					}
+				};
+			}
+			catch (OldExcelFormatException e) {
+				fs.close();
+				throw new IOException(filename + " is in an old Excel format that is not supported", e);
+			}
+			catch (IOException e) {
+				fs.close();
+				throw e;
+			}
+			catch (RuntimeException e) {
 				fs.close();
+				throw e;
+			}
+			return;
 		}
+		else if (magic != FileMagic.OOXML)
+			throw new IOException(filename + " is not an Excel file (format " + magic + ")");
 
-		// Opening with the above format failed, so attempt to open with
-		// another format.
+		// Connections that only read open the package read-only. This does not lock
+		// or copy the file. It is enough for workbooks that are streamed, which can
+		// never be written back anyway.
+		OPCPackage pkg = openPackage(write ? PackageAccess.READ_WRITE : PackageAccess.READ);
+		// Set once the package is owned by a workbook that closes it on failure.
+		boolean handedOver = false;
 		try {
-			final XSSFWorkbook xssfWb = new XSSFWorkbook(file);
+			if (isBinary(pkg)) {
+				if (write)
+					throw new IOException("cannot write to " + filename + ": XLSB workbooks can only be read");
+				handedOver = true;
+				streaming = new BinaryWorkbook(pkg);
+				return;
+			}
+			if (!write && options.getBoolean(OPTION_STREAMING, false)) {
+				handedOver = true;
+				streaming = new StreamingWorkbook(pkg);
+				return;
+			}
+			if (!write) {
+				// Workbooks in memory are shared with connections that publish (see
+				// WorkbookRegistry), so they must be loaded from a writable package.
+				pkg.revert();
+				pkg = null;
+				pkg = openPackage(PackageAccess.READ_WRITE);
+			}
+			final XSSFWorkbook xssfWb = new XSSFWorkbook(pkg);
 			wb = xssfWb;
 			writeBack = new WriteBack() {
 				@Override
-				public void write() throws IOException {
-					File backup = null;
-					if (file.exists()) {
-						// Overwriting an existing file throws
-						//  org.apache.poi.ooxml.POIXMLException: java.io.EOFException: Unexpected end of ZLIB input stream
-						// So we first move the existing file out of the way and then create a new file.
-						// If writing the new file fails then we move back the original file.
-						final File old = new File(file.getAbsolutePath());
-						backup = new File(old.getAbsolutePath() + ".bck");
-						old.renameTo(backup);
-					}
-					final FileOutputStream fos = new FileOutputStream(file);
-					try {
-						xssfWb.write(fos);
-						backup.delete();
-						backup = null;
-					}
-					finally {
-						fos.close();
-						if (backup != null)
-							backup.renameTo(file);
-					}
-				} 
+				public void write(OutputStream out) throws IOException {
+					// The workbook is still backed by the original file, so we must not
+					// write to that file directly. Doing so throws
+					//  org.apache.poi.ooxml.POIXMLException: java.io.EOFException: Unexpected end of ZLIB input stream
+					// writeWorkbook() takes care of this by writing to a temporary file.
+					xssfWb.write(out);
+				}
 			};
 		}
-		catch (InvalidFormatException e) {
+		catch (IOException e) {
+			if (!handedOver && pkg != null)
+				pkg.revert();
+			throw e;
+		}
+		catch (RuntimeException e) {
 			System.err.println(e.getMessage());
 			e.printStackTrace();
-			throw new IOException(e);
+			if (!handedOver && pkg != null)
+				pkg.revert();
+			throw e;
 		}
-		catch (Exception e) {
+	}
+
+	/** Open the package in {@link #file}. */
+	private OPCPackage openPackage(PackageAccess access) throws IOException {
+		try {
+			return OPCPackage.open(file, access);
+		}
+		catch (InvalidFormatException e) {
 			System.err.println(e.getMessage());
 			e.printStackTrace();
-			throw e;
+			throw new IOException(e);
 		}
 	}
 
+	/** Test whether the package contains an XLSB (binary) workbook rather than an XLSX workbook. */
+	private static boolean isBinary(OPCPackage pkg) {
+		final PackageRelationshipCollection rels = pkg.getRelationshipsByType(PackageRelationshipTypes.CORE_DOCUMENT);
+		return rels.size() > 0 && rels.getRelationship(0).getTargetURI().getPath().endsWith(".bin");
+	}
+
 	/** A parsed address specification. */
 	private static final class AddressInfo {
-		/** Sheet that is referenced by this address. */
+		/** Index of the sheet that is referenced by this address. */
+		public final int sheetIndex;
+		/** Sheet that is referenced by this address (<code>null</code> in streaming mode). */
 		public final Sheet sheet;
 		/** Range of cells referenced by this address. */
 		public final CellRangeAddress cells;
@@ -167,8 +331,9 @@ public class ExcelConnection implements DataConnection {
 		 * The width and height of the range is unbounded in this case.
 		 */
 		public final boolean unbounded;
-		public AddressInfo(Sheet sheet, CellRangeAddress cells, boolean unbounded) {
+		public AddressInfo(int sheetIndex, Sheet sheet, CellRangeAddress cells, boolean unbounded) {
 			super();
+			this.sheetIndex = sheetIndex;
 			this.sheet = sheet;
 			this.cells = cells;
 			this.unbounded = unbounded;
@@ -176,28 +341,39 @@ public class ExcelConnection implements DataConnection {
 	}
 	
 	/** Shortcut for <code>decode(addr, false)</code>. */
-	private AddressInfo decode(String addr) { return decode(addr, false); }
+	private AddressInfo decode(String addr) throws IOException { return decode(addr, false); }
 
 	/** Decode an address specification.
 	 * It is assumed that <code>addr</code> specifies a contiguous and rectangular range on a single sheet.
 	 * @param addr The address to decode.
 	 * @param wildcard If <code>true</code> then the second argument to range can be "*"
 	 * @return The decoded address information.
+	 * @throws IOException if the address references an unknown sheet.
 	 */
-	private AddressInfo decode(String addr, boolean wildcard) {
-		int defaultSheetIndex = wb.getActiveSheetIndex();
+	private AddressInfo decode(String addr, boolean wildcard) throws IOException {
+		int defaultSheetIndex = streaming != null ? streaming.getActiveSheetIndex() : wb.getActiveSheetIndex();
 		int sheetIndex = -1;
 		String range = null;
 
 		// Handle named ranges.
-		Name name = wb.getName(addr);
-		if (name != null) {
-			if (name.getSheetIndex() >= 0) {
-				// If the name is defined only for a single sheet then this sheet
-				// becomes the default sheet.
-				defaultSheetIndex = name.getSheetIndex();
+		if (streaming != null) {
+			final ReadOnlyWorkbook.DefinedName name = streaming.getName(addr);
+			if (name != null) {
+				if (name.sheetIndex >= 0)
+					defaultSheetIndex = name.sheetIndex;
+				addr = name.refersTo;
+			}
+		}
+		else {
+			Name name = wb.getName(addr);
+			if (name != null) {
+				if (name.getSheetIndex() >= 0) {
+					// If the name is defined only for a single sheet then this sheet
+					// becomes the default sheet.
+					defaultSheetIndex = name.getSheetIndex();
+				}
+				addr = name.getRefersToFormula();
 			}
-			addr = name.getRefersToFormula();
 		}
 
 		// Sheet and range specification are separated by "!"
@@ -208,7 +384,9 @@ public class ExcelConnection implements DataConnection {
 				fields[0] = fields[0].substring(1, fields[0].length() - 1);
 			else if (fields[0].startsWith("\"") && fields[0].endsWith("\""))
 				fields[0] = fields[0].substring(1, fields[0].length() - 1);
-			sheetIndex = wb.getSheetIndex(fields[0]);
+			sheetIndex = streaming != null ? streaming.getSheetIndex(fields[0]) : wb.getSheetIndex(fields[0]);
+			if (sheetIndex < 0)
+				throw new IOException("unknown sheet " + fields[0]);
 			range = fields[1];
 		}
 		else {
@@ -226,7 +404,7 @@ public class ExcelConnection implements DataConnection {
 			}
 		}
 
-		return new AddressInfo(wb.getSheetAt(sheetIndex), CellRangeAddress.valueOf(range), wildcard);
+		return new AddressInfo(sheetIndex, streaming != null ? null : wb.getSheetAt(sheetIndex), CellRangeAddress.valueOf(range), wildcard);
 	}
 
 	/** Base class for iterators.
@@ -286,6 +464,31 @@ public class ExcelConnection implements DataConnection {
 			return currentRow.getCell(mapIndex(index)).getRichStringCellValue().getString();
 		}
 		@Override
+		public int nextRows(RowBlock block) throws IOException {
+			block.clear();
+			final int slots = block.getSlotCount();
+			// Map and check column indices only once per block.
+			final int[] cols = new int[slots];
+			for (int s = 0; s < slots; ++s)
+				cols[s] = mapIndex(block.columns[s]);
+			final RowBlock.Kind[] kinds = block.kinds;
+			while (block.size < block.capacity && currentIndex < lastRow) {
+				++currentIndex;
+				currentRow = sheet.getRow(currentIndex);
+				final int row = block.size;
+				for (int s = 0; s < slots; ++s) {
+					final Cell cell = currentRow.getCell(cols[s]);
+					switch (kinds[s]) {
+					case INT: block.ints[s][row] = (int)Math.round(cell.getNumericCellValue()); break;
+					case NUM: block.nums[s][row] = cell.getNumericCellValue(); break;
+					case STR: block.strings[s][row] = cell.getRichStringCellValue().getString(); break;
+					}
+				}
+				++block.size;
+			}
+			return block.size;
+		}
+		@Override
 		public boolean next() throws IOException {
 			if (currentIndex > lastRow)
 				return false;
@@ -319,22 +522,26 @@ public class ExcelConnection implements DataConnection {
 		}
 	}
 
-	/** Iterate over a transposed range. */
-	private static final class TransposeInputIterator extends IteratorBase implements InputRowIterator {
-		private int currentCol = -1;
-		public TransposeInputIterator(AddressInfo addr) {
-			super(addr);
-		}
-		/** Maps a zero-based relative row index to an absolute index.
-		 * @param index The relative index to map.
-		 * @return The mapped absolute index.
-		 * @throws IOException if the index is out of bounds.
-		 */
-		private int mapRow(int index) throws IOException {
-			final int idx = firstRow + index;
-			if (idx < firstRow || idx > lastRow)
-				throw new IOException("index " + index + " is out of range [" + firstRow + ", " + lastRow + "]");
-			return idx;
+	/** Iterate over a range that was read into memory.
+	 * If the range is transposed then each column of the range is one row.
+	 */
+	private static final class GridInputIterator implements InputRowIterator {
+		private CellGrid grid;
+		private final boolean transposed;
+		private final int rows;
+		private final int columns;
+		private int current = -1;
+		public GridInputIterator(CellGrid grid, boolean transposed) {
+			this.grid = grid;
+			this.transposed = transposed;
+			this.rows = transposed ? grid.cols : grid.rows;
+			this.columns = transposed ? grid.rows : grid.cols;
+		}
+		/** Check a zero-based column index. */
+		private int check(int index) throws IOException {
+			if (index < 0 || index >= columns)
+				throw new IOException("index " + index + " is out of range [0, " + (columns - 1) + "]");
+			return index;
 		}
 		@Override
 		public int getInt(int index) throws IOException {
@@ -342,31 +549,49 @@ public class ExcelConnection implements DataConnection {
 		}
 		@Override
 		public double getDouble(int index) throws IOException {
-			return sheet.getRow(mapRow(index)).getCell(currentCol).getNumericCellValue();
+			return transposed ? grid.getDouble(check(index), current) : grid.getDouble(current, check(index));
 		}
 		@Override
 		public String getString(int index) throws IOException {
-			return sheet.getRow(mapRow(index)).getCell(currentCol).getRichStringCellValue().getString();
+			return transposed ? grid.getString(check(index), current) : grid.getString(current, check(index));
+		}
+		@Override
+		public int nextRows(RowBlock block) throws IOException {
+			block.clear();
+			final int slots = block.getSlotCount();
+			for (int s = 0; s < slots; ++s)
+				check(block.columns[s]);
+			final RowBlock.Kind[] kinds = block.kinds;
+			while (block.size < block.capacity && current + 1 < rows) {
+				++current;
+				final int row = block.size;
+				for (int s = 0; s < slots; ++s) {
+					final int r = transposed ? block.columns[s] : current;
+					final int c = transposed ? current : block.columns[s];
+					switch (kinds[s]) {
+					case INT: block.ints[s][row] = (int)Math.round(grid.getDouble(r, c)); break;
+					case NUM: block.nums[s][row] = grid.getDouble(r, c); break;
+					case STR: block.strings[s][row] = grid.getString(r, c); break;
+					}
+				}
+				++block.size;
+			}
+			return block.size;
 		}
 		@Override
 		public boolean next() throws IOException {
-			if (currentCol > lastCol)
+			if (current >= rows)
 				return false;
-			if (currentCol < 0) {
-				currentCol = firstCol;
-			}
-			else {
-				++currentCol;
-			}
-			return currentCol <= lastCol;
+			++current;
+			return current < rows;
 		}
 		@Override
 		public int getColumnCount() throws IOException {
-			return 1 + lastRow - firstRow;
+			return columns;
 		}
 		@Override
 		public void close() throws IOException {
-			sheet = null;
+			grid = null;
 		}
 		@Override
 		public TupleIO makeTupleIO(IloOplTupleSchemaDefinition schema) throws IOException {
@@ -381,21 +606,72 @@ public class ExcelConnection implements DataConnection {
 
 	@Override
 	public InputRowIterator openInputRows(String command) throws IOException {
-		if (command.endsWith("^t") || command.endsWith("^T"))
-			return new TransposeInputIterator(decode(command.substring(0, command.length() - 2)));
+		return openInputRows(command, options);
+	}
+
+	/** Evaluate the formulas in a range and copy the range into memory. */
+	private CellGrid evaluateRange(AddressInfo addr) {
+		if (evaluator == null)
+			evaluator = wb.getCreationHelper().createFormulaEvaluator();
+		final long start = System.nanoTime();
+		final CellGrid grid = CellGrid.fromSheet(addr.sheet, addr.cells, evaluator);
+		final long nanos = System.nanoTime() - start;
+		evaluationNanos += nanos;
+		traceln("ExcelConnection: evaluated " + grid.formulas + " formulas in " + addr.sheet.getSheetName() + "!" + addr.cells.formatAsString() +
+		        " in " + (nanos / 1000000) + " ms (" + (evaluationNanos / 1000000) + " ms total)");
+		return grid;
+	}
+
+	/** Open an iterator for reading with explicit connection options.
+	 * @param command           The range from which data is read, possibly preceded by options.
+	 * @param connectionOptions The options with which options in <code>command</code> are merged.
+	 * @return The new iterator.
+	 * @throws IOException if the range cannot be read.
+	 */
+	InputRowIterator openInputRows(String command, Options connectionOptions) throws IOException {
+		checkOpen();
+		final Options opts;
+		final boolean evaluate;
+		try {
+			opts = connectionOptions.with(Options.parse(command));
+			evaluate = opts.getBoolean(OPTION_EVALUATE_FORMULAS, false);
+		}
+		catch (IllegalArgumentException e) {
+			throw new IOException(e);
+		}
+		command = opts.getRemainder();
+		final boolean transpose = command.endsWith("^t") || command.endsWith("^T");
+		if (transpose)
+			command = command.substring(0, command.length() - 2);
+		if (streaming != null) {
+			if (evaluate)
+				throw new IOException("cannot evaluate formulas in " + file + " since it is not loaded into memory");
+			final AddressInfo addr = decode(command);
+			return new GridInputIterator(streaming.readRange(addr.sheetIndex, addr.cells), transpose);
+		}
+		if (evaluate) {
+			final AddressInfo addr = decode(command);
+			return new GridInputIterator(evaluateRange(addr), transpose);
+		}
+		if (transpose) {
+			// Reading cell by cell in column-major order would look up each row once per cell,
+			// so the range is copied into memory once.
+			final AddressInfo addr = decode(command);
+			return new GridInputIterator(CellGrid.fromSheet(addr.sheet, addr.cells, null), true);
+		}
 		else
 			return new InputIterator(decode(command));
 	}
 
 	/* Write output row by row. */
 	private static final class OutputIterator extends IteratorBase implements OutputRowIterator {
-		private WriteBack writeBack;
+		private final ExcelConnection connection;
 		private Row currentRow;
 		private int currentIndex;
-		public OutputIterator(AddressInfo addr, WriteBack writer) {
+		public OutputIterator(AddressInfo addr, ExcelConnection connection) {
 			/** TODO: If a sheet does not exist in the workbook then we could create it. */
 			super(addr);
-			writeBack = writer;
+			this.connection = connection;
 			currentRow = sheet.getRow(firstRow);
 			if (currentRow == null)
 				currentRow = sheet.createRow(firstRow);
@@ -427,6 +703,30 @@ public class ExcelConnection implements DataConnection {
 			getCell(index).setCellValue(value);
 		}
 		@Override
+		public void writeRows(RowBlock block) throws IOException {
+			final int slots = block.getSlotCount();
+			// Map and check column indices only once per block.
+			final int[] cols = new int[slots];
+			for (int s = 0; s < slots; ++s)
+				cols[s] = mapIndex(block.columns[s]);
+			final RowBlock.Kind[] kinds = block.kinds;
+			for (int row = 0; row < block.size; ++row) {
+				if (currentRow == null)
+					throw new IOException("too many rows for range on sheet " + sheet.getSheetName());
+				for (int s = 0; s < slots; ++s) {
+					Cell cell = currentRow.getCell(cols[s]);
+					if (cell == null)
+						cell = currentRow.createCell(cols[s]);
+					switch (kinds[s]) {
+					case INT: cell.setCellValue(block.ints[s][row]); break;
+					case NUM: cell.setCellValue(block.nums[s][row]); break;
+					case STR: cell.setCellValue(block.strings[s][row]); break;
+					}
+				}
+				completeRow();
+			}
+		}
+		@Override
 		public void completeRow() throws IOException {
 			++currentIndex;
 			if (currentIndex > lastRow)
@@ -439,13 +739,15 @@ public class ExcelConnection implements DataConnection {
 		}
 		@Override
 		public void commit() throws IOException {
-			/** TODO: This is questionable: if the workbook is huge we write it every time! */
-			writeBack.write();
+			// Only mark the workbook as modified. It is written once in ExcelConnection.commit(),
+			// after all elements were published.
+			connection.dirty = true;
+			connection.evaluator = null;
 		}
 		@Override
 		public void close() throws IOException {
 			// We don't write the workbook here since we may be closed due to an error.
-			// the book is written in function commit()
+			// the book is written in function ExcelConnection.commit()
 			sheet = null;
 			currentRow = null;
 			currentIndex = -1;
@@ -453,18 +755,201 @@ public class ExcelConnection implements DataConnection {
 	}
 
 
+	/** Get the streaming version of a sheet for writing rows starting at <code>firstRow</code>.
+	 * The first time a sheet is streamed, <code>firstRow</code> is recorded. Since streamed
+	 * rows can only be appended to a sheet, all existing rows from there on are removed
+	 * when the workbook is written (see {@link #removeReplacedRows()}).
+	 * @param sheetIndex Index of the sheet.
+	 * @param firstRow   The first row to be written.
+	 * @param window     The number of rows to keep in memory.
+	 * @return The sheet to write to.
+	 * @throws IOException if the sheet cannot be streamed from <code>firstRow</code> on.
+	 */
+	private Sheet getStreamingSheet(int sheetIndex, int firstRow, int window) throws IOException {
+		if (sxssf == null)
+			sxssf = new SXSSFWorkbook((XSSFWorkbook)wb, window);
+		final SXSSFSheet sheet = sxssf.getSheetAt(sheetIndex);
+		if (streamedSheets.containsKey(sheetIndex)) {
+			if (firstRow <= sheet.getLastRowNum())
+				throw new IOException("ranges written with option " + OPTION_WRITE_WINDOW + " must be written top to bottom on sheet " + sheet.getSheetName());
+		}
+		else
+			streamedSheets.put(sheetIndex, firstRow);
+		sheet.setRandomAccessWindowSize(window);
+		return sheet;
+	}
+
+	/** Remove the rows of {@link #wb} that are replaced by streamed rows.
+	 * This is only done right before the workbook is written, so that the rows are still
+	 * there if publishing fails before.
+	 */
+	private void removeReplacedRows() {
+		for (Map.Entry<Integer, Integer> e : streamedSheets.entrySet()) {
+			final Sheet template = wb.getSheetAt(e.getKey());
+			final int firstRow = e.getValue();
+			final List<Row> remove = new ArrayList<Row>();
+			for (Row row : template) {
+				if (row.getRowNum() >= firstRow)
+					remove.add(row);
+			}
+			for (Row row : remove)
+				template.removeRow(row);
+		}
+	}
+
+	/** Test whether this connection can only be used for reading. */
+	boolean isReadOnly() { return streaming != null; }
+
+	/** Test whether the workbook was not thrown away and the file was not modified by
+	 * others since the workbook was loaded.
+	 */
+	boolean isCurrent() { return !discarded && file.lastModified() == loadedModified; }
+
+	/** Fail if the workbook was thrown away or closed. */
+	private void checkOpen() throws IOException {
+		if (discarded)
+			throw new IOException("workbook " + file + " was discarded and must be opened again");
+		if (wb == null && streaming == null)
+			throw new IOException("workbook " + file + " is closed");
+	}
+
 	@Override
 	public OutputRowIterator openOutputRows(String command) throws IOException {
-		return new OutputIterator(decode(command, true), writeBack);
+		return openOutputRows(command, options);
+	}
+
+	/** Open an iterator for writing with explicit connection options.
+	 * @param command           The range to which data is written, possibly preceded by options.
+	 * @param connectionOptions The options with which options in <code>command</code> are merged.
+	 * @return The new iterator.
+	 * @throws IOException if the range cannot be written.
+	 */
+	OutputRowIterator openOutputRows(String command, Options connectionOptions) throws IOException {
+		checkOpen();
+		// Cells are about to change, so cached formula results become invalid.
+		evaluator = null;
+		if (isReadOnly())
+			throw new IOException("workbook " + file + " is opened read-only");
+		final Options opts;
+		final int window;
+		try {
+			opts = connectionOptions.with(Options.parse(command));
+			window = opts.getInt(OPTION_WRITE_WINDOW, 0);
+		}
+		catch (IllegalArgumentException e) {
+			throw new IOException(e);
+		}
+		AddressInfo addr = decode(opts.getRemainder(), true);
+		if (window > 0 && wb instanceof XSSFWorkbook)
+			addr = new AddressInfo(addr.sheetIndex, getStreamingSheet(addr.sheetIndex, addr.cells.getFirstRow(), window), addr.cells, addr.unbounded);
+		else {
+			if (window > 0)
+				System.out.println("option " + OPTION_WRITE_WINDOW + " is only supported for XLSX files, ignored for " + file);
+			modifiedSheets.add(addr.sheetIndex);
+		}
+		return new OutputIterator(addr, this);
+	}
+
+	/** Release the streaming view of the workbook and its temporary files. */
+	private void disposeStreaming() {
+		if (sxssf != null) {
+			sxssf.dispose();
+			sxssf = null;
+			streamedSheets.clear();
+		}
+	}
+
+	/** Write the workbook back to {@link #file}.
+	 * The workbook is first written to a temporary file in the same directory which
+	 * then replaces the original file. So if anything goes wrong then the original
+	 * file is left untouched.
+	 */
+	private void writeWorkbook() throws IOException {
+		final long start = System.nanoTime();
+		final File target = file.getAbsoluteFile();
+		final File tmp = File.createTempFile(target.getName(), ".tmp", target.getParentFile());
+		boolean success = false;
+		try {
+			final FileOutputStream fos = new FileOutputStream(tmp);
+			try {
+				if (sxssf != null) {
+					removeReplacedRows();
+					sxssf.write(fos); // This also writes everything that is not streamed.
+				}
+				else if (!incremental || !(wb instanceof XSSFWorkbook) || !IncrementalWriter.write(file, (XSSFWorkbook)wb, modifiedSheets, fos))
+					writeBack.write(fos);
+				fos.getFD().sync();
+			}
+			finally {
+				fos.close();
+			}
+			try {
+				Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			}
+			catch (AtomicMoveNotSupportedException e) {
+				Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+			loadedModified = target.lastModified();
+			success = true;
+		}
+		finally {
+			if (!success)
+				tmp.delete();
+		}
+		traceln("ExcelConnection: wrote " + file + " in " + ((System.nanoTime() - start) / 1000000) + " ms");
+	}
+
+	@Override
+	public void commit() throws IOException {
+		// The workbook is written exactly once, after all elements were published.
+		if (dirty) {
+			final boolean streamed = sxssf != null;
+			try {
+				writeWorkbook();
+			}
+			finally {
+				// Streamed rows cannot be written a second time.
+				disposeStreaming();
+			}
+			dirty = false;
+			modifiedSheets.clear();
+			if (streamed) {
+				// The streamed rows are only in the file and the rows they replaced were
+				// removed from the in-memory workbook, so it no longer matches the file.
+				discarded = true;
+				close();
+			}
+		}
+	}
+	@Override
+	public void rollback() throws IOException {
+		// The rolled back rows are in the in-memory workbook and there is no way to undo
+		// them there. Throw the workbook away, the file itself was not touched.
+		dirty = false;
+		modifiedSheets.clear();
+		if (!discarded) {
+			discarded = true;
+			close();
+		}
 	}
 	@Override
 	public void close() throws IOException {
+		evaluator = null;
 		try {
-			if (wb != null)
+			disposeStreaming();
+			if (wb instanceof XSSFWorkbook) {
+				// Closing would save the package to the original file, but the workbook
+				// must only be written by commit().
+				((XSSFWorkbook)wb).getPackage().revert();
+			}
+			else if (wb != null)
 				wb.close();
+			if (streaming != null)
+				streaming.close();
 		}
 		finally {
 			wb = null;
+			streaming = null;
 		}
 	}
 
@@ -479,9 +964,20 @@ public class ExcelConnection implements DataConnection {
 	public static void register(String prefix, IloOplModel model) {
 		System.err.println("Registering " + prefix);
 		new DataBaseDataHandler(prefix, model, new DataBaseDataHandler.ConnectionFactory() {
+			/** Workbooks shared by all connections of the handler. */
+			private final WorkbookRegistry registry = new WorkbookRegistry();
 			@Override
 			public DataConnection newConnection(ConnectionInfo info, boolean write) throws IOException {
-				return new ExcelConnection(info.connstr, write);
+				try {
+					return registry.open(info.connstr, write, info.options);
+				}
+				catch (IllegalArgumentException e) {
+					throw new IOException(e);
+				}
+			}
+			@Override
+			public void close() throws IOException {
+				registry.close();
 			}
 		});
 		System.err.println("Prefix " + prefix + " registered for Excel");
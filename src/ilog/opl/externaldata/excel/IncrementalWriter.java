@@ -0,0 +1,170 @@
+//   Copyright 2020 IBM Corporation
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+package ilog.opl.externaldata.excel;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Collection;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.apache.poi.ooxml.POIXMLDocumentPart;
+import org.apache.poi.openxml4j.opc.PackagePart;
+import org.apache.poi.xssf.model.SharedStringsTable;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+
+/** Write an XLSX workbook by only regenerating the parts that were modified.
+ * All other entries of the package are copied byte by byte (without decompressing
+ * them) from the file from which the workbook was loaded. The regenerated parts are
+ * the sheets to which data was written, the shared strings and the calculation chain.
+ *
+ * The shared strings are serialized through the public API. POI has no public way to
+ * serialize sheets and the calculation chain, so these are written through the protected
+ * method {@link POIXMLDocumentPart#commit()}. If that method cannot be accessed (for
+ * example because of a security manager or module restrictions) then the workbook is
+ * not written incrementally and the caller has to write it in full.
+ */
+final class IncrementalWriter {
+	private IncrementalWriter() {}
+
+	/** Serialize a sheet or the calculation chain of the workbook.
+	 * @return The new content of <code>part</code> or <code>null</code> if the part cannot
+	 *         be serialized without writing the whole workbook.
+	 */
+	private static byte[] serialize(XSSFWorkbook wb, POIXMLDocumentPart part) throws IOException {
+		try {
+			final Method commit = POIXMLDocumentPart.class.getDeclaredMethod("commit");
+			commit.setAccessible(true);
+			commit.invoke(part);
+		}
+		catch (InvocationTargetException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException)e.getCause();
+			throw new IOException(e.getCause());
+		}
+		catch (ReflectiveOperationException e) {
+			System.err.println("cannot write " + entryName(part) + " incrementally: " + e);
+			return null;
+		}
+		catch (RuntimeException e) {
+			// SecurityException or InaccessibleObjectException from setAccessible().
+			System.err.println("cannot write " + entryName(part) + " incrementally: " + e);
+			return null;
+		}
+		// Writing a part replaces it in the package, so look it up again.
+		final PackagePart written = wb.getPackage().getPart(part.getPackagePart().getPartName());
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final InputStream in = written.getInputStream();
+		try {
+			final byte[] buffer = new byte[64 * 1024];
+			int n;
+			while ((n = in.read(buffer)) > 0)
+				bytes.write(buffer, 0, n);
+		}
+		finally {
+			in.close();
+		}
+		return bytes.toByteArray();
+	}
+
+	/** Get the zip entry name for a part. */
+	private static String entryName(POIXMLDocumentPart part) {
+		final String name = part.getPackagePart().getPartName().getName();
+		return name.startsWith("/") ? name.substring(1) : name;
+	}
+
+	/** Write the workbook.
+	 * All modified parts are serialized before anything is written to <code>out</code>.
+	 * @param original The file from which <code>wb</code> was loaded.
+	 * @param wb       The workbook to write.
+	 * @param sheets   Indices of the sheets that were modified.
+	 * @param out      Where to write the workbook.
+	 * @return <code>true</code> if the workbook was written, <code>false</code> if it cannot be
+	 *         written incrementally (in that case nothing was written to <code>out</code>).
+	 * @throws IOException if writing fails.
+	 */
+	public static boolean write(File original, XSSFWorkbook wb, Collection<Integer> sheets, OutputStream out) throws IOException {
+		final Map<String, POIXMLDocumentPart> modified = new LinkedHashMap<String, POIXMLDocumentPart>();
+		for (Integer idx : sheets) {
+			final POIXMLDocumentPart sheet = wb.getSheetAt(idx);
+			modified.put(entryName(sheet), sheet);
+		}
+		final SharedStringsTable sst = wb.getSharedStringSource();
+		if (sst != null)
+			modified.put(entryName(sst), sst);
+		if (wb.getCalculationChain() != null)
+			modified.put(entryName(wb.getCalculationChain()), wb.getCalculationChain());
+
+		final ZipFile zip = new ZipFile(original);
+		try {
+			// Parts that did not exist before (for example a shared strings table created
+			// by POI) would require updates to relations and content types.
+			for (String name : modified.keySet()) {
+				if (zip.getEntry(name) == null)
+					return false;
+			}
+
+			final Map<String, byte[]> contents = new HashMap<String, byte[]>();
+			for (Map.Entry<String, POIXMLDocumentPart> e : modified.entrySet()) {
+				final byte[] bytes;
+				if (e.getValue() == sst) {
+					final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+					sst.writeTo(buffer);
+					bytes = buffer.toByteArray();
+				}
+				else {
+					bytes = serialize(wb, e.getValue());
+					if (bytes == null)
+						return false;
+				}
+				contents.put(e.getKey(), bytes);
+			}
+
+			final ZipArchiveOutputStream zos = new ZipArchiveOutputStream(out);
+			for (Enumeration<ZipArchiveEntry> it = zip.getEntriesInPhysicalOrder(); it.hasMoreElements(); /* nothing */) {
+				final ZipArchiveEntry entry = it.nextElement();
+				final byte[] bytes = contents.get(entry.getName());
+				if (bytes != null) {
+					zos.putArchiveEntry(new ZipArchiveEntry(entry.getName()));
+					zos.write(bytes);
+					zos.closeArchiveEntry();
+				}
+				else {
+					final InputStream raw = zip.getRawInputStream(entry);
+					try {
+						zos.addRawArchiveEntry(entry, raw);
+					}
+					finally {
+						raw.close();
+					}
+				}
+			}
+			zos.finish();
+			return true;
+		}
+		finally {
+			zip.close();
+		}
+	}
+}
@@ -0,0 +1,185 @@
+//   Copyright 2020 IBM Corporation
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+package ilog.opl.externaldata.excel;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.apache.poi.ss.util.CellRangeAddress;
+
+/** Read-only access to a workbook that is not built in memory.
+ * Sheets are parsed on demand and only the cells in requested ranges are kept.
+ * Subclasses implement the parsing for a particular file format.
+ *
+ * Since parsing a sheet is expensive, the first time a range on a sheet is requested
+ * the ranges of all names defined on that sheet are extracted in the same pass. They
+ * are kept until they are requested (or the workbook is closed), so reading many
+ * named ranges from one sheet parses the sheet only once.
+ */
+abstract class ReadOnlyWorkbook implements Closeable {
+	/** A defined name in the workbook. */
+	static final class DefinedName {
+		/** Index of the sheet to which the name is local, or -1 for global names. */
+		public final int sheetIndex;
+		/** The formula to which the name refers. */
+		public final String refersTo;
+		public DefinedName(int sheetIndex, String refersTo) {
+			this.sheetIndex = sheetIndex;
+			this.refersTo = refersTo;
+		}
+	}
+
+	/** Sheet names in workbook order. */
+	protected final List<String> sheetNames = new ArrayList<String>();
+	/** Defined names by lower case name. */
+	protected final Map<String, DefinedName> names = new HashMap<String, DefinedName>();
+	/** Index of the active sheet. */
+	protected int activeSheet = 0;
+	/** Ranges that were extracted ahead of time, by sheet index and range. */
+	private final Map<String, CellGrid> extracted = new HashMap<String, CellGrid>();
+	/** Sheets from which named ranges were already extracted. */
+	private final List<Integer> scannedSheets = new ArrayList<Integer>();
+
+	/** Named ranges with more rows than this are not extracted ahead of time. */
+	private static final int MAX_PREFETCH_ROWS = 1 << 20;
+
+	/** Add a defined name.
+	 * Like POI we use the first definition if a name is defined more than once.
+	 */
+	protected final void addName(String name, DefinedName definition) {
+		final String key = name.toLowerCase(Locale.ROOT);
+		if (!names.containsKey(key))
+			names.put(key, definition);
+	}
+
+	/** Get the index of the sheet that is active in the workbook. */
+	public int getActiveSheetIndex() { return activeSheet; }
+
+	/** Get the number of sheets. */
+	public int getNumberOfSheets() { return sheetNames.size(); }
+
+	/** Get the name of sheet <code>index</code>. */
+	public String getSheetName(int index) { return sheetNames.get(index); }
+
+	/** Get the index of sheet <code>name</code>.
+	 * Like in Excel, sheet names are not case sensitive.
+	 * @return The index of the sheet or -1 if there is no such sheet.
+	 */
+	public int getSheetIndex(String name) {
+		for (int i = 0; i < sheetNames.size(); ++i) {
+			if (sheetNames.get(i).equalsIgnoreCase(name))
+				return i;
+		}
+		return -1;
+	}
+
+	/** Look up a defined name.
+	 * @return The name or <code>null</code> if there is no such name.
+	 */
+	public DefinedName getName(String name) {
+		return names.get(name.toLowerCase(Locale.ROOT));
+	}
+
+	/** Parse a sheet and store the cells that fall into any of <code>grids</code>.
+	 * Implementations should stop parsing once the last row of all grids was seen.
+	 * @param sheetIndex The sheet to parse.
+	 * @param grids      The ranges to fill.
+	 * @throws IOException if the sheet cannot be parsed.
+	 */
+	protected abstract void scanSheet(int sheetIndex, CellGrid[] grids) throws IOException;
+
+	/** Read the cells in a range.
+	 * @param sheetIndex The sheet on which the range is located.
+	 * @param cells      The range to read.
+	 * @return The values of all cells in <code>cells</code>.
+	 * @throws IOException if the sheet cannot be parsed.
+	 */
+	public CellGrid readRange(int sheetIndex, CellRangeAddress cells) throws IOException {
+		final String key = sheetIndex + "!" + cells.formatAsString();
+		final CellGrid cached = extracted.remove(key);
+		if (cached != null)
+			return cached;
+
+		final CellGrid grid = new CellGrid(cells);
+		final List<CellGrid> grids = new ArrayList<CellGrid>();
+		grids.add(grid);
+		if (!scannedSheets.contains(sheetIndex)) {
+			// Extract all named ranges on this sheet in the same pass.
+			scannedSheets.add(sheetIndex);
+			for (CellRangeAddress named : getNamedRanges(sheetIndex)) {
+				final String namedKey = sheetIndex + "!" + named.formatAsString();
+				if (!namedKey.equals(key) && !extracted.containsKey(namedKey)) {
+					final CellGrid g = new CellGrid(named);
+					extracted.put(namedKey, g);
+					grids.add(g);
+				}
+			}
+		}
+		boolean success = false;
+		try {
+			scanSheet(sheetIndex, grids.toArray(new CellGrid[grids.size()]));
+			success = true;
+		}
+		finally {
+			if (!success) {
+				// Do not keep incomplete ranges.
+				extracted.values().removeAll(grids);
+			}
+		}
+		return grid;
+	}
+
+	/** Get the ranges of all names that refer to a rectangular range on a sheet.
+	 * Names that refer to anything else (formulas, multiple areas, ...) are ignored.
+	 */
+	private List<CellRangeAddress> getNamedRanges(int sheetIndex) {
+		final List<CellRangeAddress> result = new ArrayList<CellRangeAddress>();
+		for (DefinedName name : names.values()) {
+			String ref = name.refersTo;
+			if (ref.indexOf(',') >= 0 || ref.indexOf('(') >= 0 || ref.indexOf('#') >= 0)
+				continue;
+			int sheet = name.sheetIndex >= 0 ? name.sheetIndex : activeSheet;
+			final int bang = ref.lastIndexOf('!');
+			if (bang >= 0) {
+				String sheetName = ref.substring(0, bang);
+				if (sheetName.startsWith("'") && sheetName.endsWith("'"))
+					sheetName = sheetName.substring(1, sheetName.length() - 1).replace("''", "'");
+				sheet = getSheetIndex(sheetName);
+				ref = ref.substring(bang + 1);
+			}
+			if (sheet != sheetIndex)
+				continue;
+			try {
+				final CellRangeAddress cells = CellRangeAddress.valueOf(ref);
+				if (cells.getFirstRow() >= 0 && cells.getFirstColumn() >= 0 &&
+				    cells.getLastRow() - cells.getFirstRow() < MAX_PREFETCH_ROWS)
+					result.add(cells);
+			}
+			catch (IllegalArgumentException e) {
+				// Not a plain range, ignore it.
+			}
+		}
+		return result;
+	}
+
+	@Override
+	public void close() throws IOException {
+		extracted.clear();
+	}
+}
@@ -0,0 +1,307 @@
+//   Copyright 2020 IBM Corporation
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+package ilog.opl.externaldata.excel;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.apache.poi.ooxml.util.SAXHelper;
+import org.apache.poi.openxml4j.exceptions.OpenXML4JException;
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.xssf.eventusermodel.ReadOnlySharedStringsTable;
+import org.apache.poi.xssf.eventusermodel.XSSFReader;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.DefaultHandler;
+
+/** Read-only access to an XLSX workbook that does not build the workbook in memory.
+ * Sheets are parsed with SAX and only the cells in a requested range are kept.
+ * Parsing of a sheet stops as soon as the last row of the range was seen.
+ * Shared strings are loaded only if a cell that refers to them is read.
+ */
+final class StreamingWorkbook extends ReadOnlyWorkbook {
+	/** Namespace for relationship attributes in workbook.xml. */
+	private static final String NS_RELATIONSHIPS = "http://schemas.openxmlformats.org/officeDocument/2006/relationships";
+
+	private OPCPackage pkg;
+	private final XSSFReader reader;
+	private ReadOnlySharedStringsTable sharedStrings = null;
+	/** Relationship ids of the sheets in workbook order. */
+	private final List<String> sheetIds = new ArrayList<String>();
+
+	/** Read a workbook from a package.
+	 * The package is closed when the workbook is closed or if the constructor fails.
+	 * @param pkg A package that was opened read-only.
+	 * @throws IOException if the package does not contain an XLSX workbook.
+	 */
+	public StreamingWorkbook(OPCPackage pkg) throws IOException {
+		try {
+			this.pkg = pkg;
+			reader = new XSSFReader(pkg);
+			final InputStream wb = reader.getWorkbookData();
+			try {
+				parse(wb, new WorkbookHandler());
+			}
+			finally {
+				wb.close();
+			}
+		}
+		catch (OpenXML4JException e) {
+			close();
+			throw new IOException(e);
+		}
+		catch (IOException e) {
+			close();
+			throw e;
+		}
+		catch (RuntimeException e) {
+			close();
+			throw e;
+		}
+	}
+
+	/** Parse <code>in</code> with <code>handler</code>. */
+	private static void parse(InputStream in, DefaultHandler handler) throws IOException {
+		try {
+			final XMLReader xml = SAXHelper.newXMLReader();
+			xml.setContentHandler(handler);
+			xml.parse(new InputSource(in));
+		}
+		catch (StopParsing e) {
+			// Handler has all the data it needs.
+		}
+		catch (SAXException e) {
+			if (e.getException() instanceof IOException)
+				throw (IOException)e.getException();
+			throw new IOException(e);
+		}
+		catch (ParserConfigurationException e) {
+			throw new IOException(e);
+		}
+	}
+
+	@Override
+	protected void scanSheet(int sheetIndex, CellGrid[] grids) throws IOException {
+		try {
+			final InputStream in = reader.getSheet(sheetIds.get(sheetIndex));
+			try {
+				parse(in, new SheetHandler(grids));
+			}
+			finally {
+				in.close();
+			}
+		}
+		catch (OpenXML4JException e) {
+			throw new IOException(e);
+		}
+	}
+
+	/** Get the shared string with index <code>idx</code>, loading the table on first use. */
+	private String getSharedString(int idx) throws SAXException {
+		if (sharedStrings == null) {
+			try {
+				sharedStrings = new ReadOnlySharedStringsTable(pkg);
+			}
+			catch (IOException e) {
+				throw new SAXException(e);
+			}
+		}
+		return sharedStrings.getItemAt(idx).getString();
+	}
+
+	@Override
+	public void close() throws IOException {
+		sharedStrings = null;
+		super.close();
+		if (pkg != null) {
+			// The package is read-only, so revert() closes it without any attempt to save.
+			pkg.revert();
+			pkg = null;
+		}
+	}
+
+	/** Thrown by handlers to end parsing early. */
+	@SuppressWarnings("serial")
+	private static final class StopParsing extends SAXException {
+		@Override
+		public synchronized Throwable fillInStackTrace() { return this; }
+	}
+
+	/** Collects sheets, defined names and the active sheet from workbook.xml. */
+	private final class WorkbookHandler extends DefaultHandler {
+		private StringBuilder text = null;
+		private String name = null;
+		private int localSheet = -1;
+		@Override
+		public void startElement(String uri, String localName, String qName, Attributes attrs) {
+			if (localName.equals("sheet")) {
+				sheetNames.add(attrs.getValue("name"));
+				sheetIds.add(attrs.getValue(NS_RELATIONSHIPS, "id"));
+			}
+			else if (localName.equals("workbookView")) {
+				final String active = attrs.getValue("activeTab");
+				if (active != null)
+					activeSheet = Integer.parseInt(active);
+			}
+			else if (localName.equals("definedName")) {
+				name = attrs.getValue("name");
+				final String local = attrs.getValue("localSheetId");
+				localSheet = local == null ? -1 : Integer.parseInt(local);
+				text = new StringBuilder();
+			}
+		}
+		@Override
+		public void characters(char[] ch, int start, int length) {
+			if (text != null)
+				text.append(ch, start, length);
+		}
+		@Override
+		public void endElement(String uri, String localName, String qName) throws SAXException {
+			if (localName.equals("definedName")) {
+				addName(name, new DefinedName(localSheet, text.toString()));
+				text = null;
+				name = null;
+			}
+			else if (localName.equals("sheets") && sheetNames.isEmpty())
+				throw new SAXException("workbook has no sheets");
+		}
+	}
+
+	/** Collects the cells of one or more ranges from a sheet. */
+	private final class SheetHandler extends DefaultHandler {
+		private final CellGrid[] grids;
+		/** The grids that contain the current cell. */
+		private final CellGrid[] hits;
+		/** The number of valid elements in {@link #hits}. */
+		private int nhits = 0;
+		/** The last row in any of the grids. */
+		private final int lastRow;
+		/** Current (0-based) row. */
+		private int row = -1;
+		/** Current (0-based) column. */
+		private int col = -1;
+		/** Value of the <code>t</code> attribute of the current cell. */
+		private String type = null;
+		/** Whether the current cell is in any range. */
+		private boolean inRange = false;
+		/** Text of the current value, <code>null</code> if we are not in a value. */
+		private StringBuilder value = null;
+		private final StringBuilder buffer = new StringBuilder();
+		/** Whether we are in phonetic text of an inline string (which is ignored). */
+		private boolean phonetic = false;
+
+		public SheetHandler(CellGrid[] grids) {
+			this.grids = grids;
+			this.hits = new CellGrid[grids.length];
+			int last = -1;
+			for (CellGrid g : grids)
+				last = Math.max(last, g.firstRow + g.rows - 1);
+			this.lastRow = last;
+		}
+
+		@Override
+		public void startElement(String uri, String localName, String qName, Attributes attrs) throws SAXException {
+			if (localName.equals("row")) {
+				final String r = attrs.getValue("r");
+				row = r == null ? row + 1 : Integer.parseInt(r) - 1;
+				if (row > lastRow)
+					throw new StopParsing();
+				col = -1;
+			}
+			else if (localName.equals("c")) {
+				final String r = attrs.getValue("r");
+				col = r == null ? col + 1 : parseColumn(r);
+				type = attrs.getValue("t");
+				nhits = 0;
+				for (CellGrid g : grids) {
+					if (g.contains(row, col))
+						hits[nhits++] = g;
+				}
+				inRange = nhits > 0;
+				buffer.setLength(0);
+			}
+			else if (inRange) {
+				if (localName.equals("v"))
+					value = buffer;
+				else if (localName.equals("rPh"))
+					phonetic = true;
+				else if (localName.equals("t") && !phonetic)
+					value = buffer;
+			}
+		}
+
+		@Override
+		public void characters(char[] ch, int start, int length) {
+			if (value != null)
+				value.append(ch, start, length);
+		}
+
+		@Override
+		public void endElement(String uri, String localName, String qName) throws SAXException {
+			if (localName.equals("v") || localName.equals("t"))
+				value = null;
+			else if (localName.equals("rPh"))
+				phonetic = false;
+			else if (localName.equals("c") && inRange) {
+				store(buffer.toString());
+				inRange = false;
+			}
+		}
+
+		/** Store the value of the current cell in all grids that contain it. */
+		private void store(String text) throws SAXException {
+			if (type == null || type.equals("n")) {
+				if (text.length() > 0)
+					storeNumeric(CellGrid.NUMERIC, Double.parseDouble(text));
+			}
+			else if (type.equals("s"))
+				storeString(CellGrid.STRING, getSharedString(Integer.parseInt(text)));
+			else if (type.equals("str") || type.equals("inlineStr"))
+				storeString(CellGrid.STRING, text);
+			else if (type.equals("b"))
+				storeNumeric(CellGrid.BOOLEAN, text.equals("1") ? 1.0 : 0.0);
+			else if (type.equals("e"))
+				storeString(CellGrid.ERROR, text);
+			else
+				storeString(CellGrid.STRING, text);
+		}
+		private void storeNumeric(byte t, double value) {
+			for (int i = 0; i < nhits; ++i)
+				hits[i].setNumeric(row, col, t, value);
+		}
+		private void storeString(byte t, String value) {
+			for (int i = 0; i < nhits; ++i)
+				hits[i].setString(row, col, t, value);
+		}
+	}
+
+	/** Get the (0-based) column index from a cell reference like <code>AB12</code>. */
+	private static int parseColumn(String ref) {
+		int col = 0;
+		for (int i = 0; i < ref.length(); ++i) {
+			final char c = ref.charAt(i);
+			if (c >= 'A' && c <= 'Z')
+				col = col * 26 + (c - 'A' + 1);
+			else if (c != '$')
+				break;
+		}
+		return col - 1;
+	}
+}
@@ -0,0 +1,187 @@
+//   Copyright 2020 IBM Corporation
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+package ilog.opl.externaldata.excel;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import ilog.opl.externaldata.DataConnection;
+import ilog.opl.externaldata.InputRowIterator;
+import ilog.opl.externaldata.Options;
+import ilog.opl.externaldata.OutputRowIterator;
+
+/** Workbooks that are shared between connections.
+ * All connections that refer to the same file (by canonical path) share the same
+ * {@link ExcelConnection}, so the workbook is parsed only once. Workbooks are reference
+ * counted. A workbook that is no longer referenced stays open until {@link #close()} is
+ * invoked, so that for example the publisher can reuse a workbook that was read before.
+ * A workbook is not reused if the file was modified by somebody else after it was loaded
+ * or if changes to it were rolled back.
+ * Connection options that affect the workbook itself (like {@link ExcelConnection#OPTION_STREAMING}
+ * or {@link ExcelConnection#OPTION_INCREMENTAL}) are taken from the connection that loaded it.
+ * Options that affect single reads or publishes are taken from the connection that is used.
+ */
+final class WorkbookRegistry {
+	/** A loaded workbook. */
+	private static final class Entry {
+		public final ExcelConnection conn;
+		public int refs = 0;
+		/** Whether the workbook must not be handed out any more. */
+		public boolean stale = false;
+		public Entry(ExcelConnection conn) {
+			this.conn = conn;
+		}
+	}
+
+	/** Loaded workbooks by canonical path. */
+	private final Map<String, List<Entry>> entries = new HashMap<String, List<Entry>>();
+
+	/** Get a connection for <code>filename</code>.
+	 * @param filename The name of the file that contains the workbook.
+	 * @param write    Whether the connection is used for writing.
+	 * @param options  Options for the connection.
+	 * @return A connection that must be closed when it is no longer needed.
+	 * @throws IOException if the workbook cannot be loaded.
+	 */
+	public synchronized DataConnection open(String filename, boolean write, Options options) throws IOException {
+		final String path = new File(filename).getCanonicalPath();
+		List<Entry> list = entries.get(path);
+		if (list == null) {
+			list = new ArrayList<Entry>();
+			entries.put(path, list);
+		}
+		Entry entry = null;
+		for (Iterator<Entry> it = list.iterator(); it.hasNext(); /* nothing */) {
+			final Entry e = it.next();
+			if (e.stale || !e.conn.isCurrent()) {
+				// The file was changed, drop the workbook as soon as it is no longer used.
+				e.stale = true;
+				if (e.refs == 0) {
+					it.remove();
+					e.conn.close();
+				}
+			}
+			else if (entry == null && (!write || !e.conn.isReadOnly()))
+				entry = e;
+		}
+		if (entry == null) {
+			entry = new Entry(new ExcelConnection(filename, write, options));
+			list.add(entry);
+		}
+		++entry.refs;
+		return new SharedConnection(entry, options);
+	}
+
+	/** Release a reference to <code>entry</code>.
+	 * Workbooks that are read in streaming mode are closed immediately since they
+	 * cannot be reused for publishing. So are stale workbooks.
+	 */
+	private synchronized void release(Entry entry) throws IOException {
+		if (--entry.refs == 0 && (entry.stale || entry.conn.isReadOnly())) {
+			for (List<Entry> list : entries.values())
+				list.remove(entry);
+			entry.conn.close();
+		}
+	}
+
+	/** Make sure that <code>entry</code> is not handed out again.
+	 * The workbook is closed once the last connection that refers to it is closed.
+	 */
+	private synchronized void evict(Entry entry) throws IOException {
+		entry.stale = true;
+		for (List<Entry> list : entries.values())
+			list.remove(entry);
+		if (entry.refs == 0)
+			entry.conn.close();
+	}
+
+	/** Close all workbooks that are no longer referenced. */
+	public synchronized void close() throws IOException {
+		IOException ex = null;
+		for (Iterator<List<Entry>> it = entries.values().iterator(); it.hasNext(); /* nothing */) {
+			final List<Entry> list = it.next();
+			for (Iterator<Entry> it2 = list.iterator(); it2.hasNext(); /* nothing */) {
+				final Entry e = it2.next();
+				if (e.refs == 0) {
+					it2.remove();
+					try {
+						e.conn.close();
+					}
+					catch (IOException e2) {
+						if (ex == null)
+							ex = e2;
+					}
+				}
+			}
+			if (list.isEmpty())
+				it.remove();
+		}
+		if (ex != null)
+			throw ex;
+	}
+
+	/** A connection that refers to a shared workbook.
+	 * Since the workbook is shared, a commit writes the changes made through all
+	 * connections, but the workbook is written only once.
+	 */
+	private final class SharedConnection implements DataConnection {
+		private Entry entry;
+		private final Options options;
+		public SharedConnection(Entry entry, Options options) {
+			this.entry = entry;
+			this.options = options;
+		}
+		private ExcelConnection get() throws IOException {
+			if (entry == null)
+				throw new IOException("connection is closed");
+			return entry.conn;
+		}
+		@Override
+		public InputRowIterator openInputRows(String command) throws IOException {
+			return get().openInputRows(command, options);
+		}
+		@Override
+		public OutputRowIterator openOutputRows(String command) throws IOException {
+			return get().openOutputRows(command, options);
+		}
+		@Override
+		public void commit() throws IOException {
+			get().commit();
+		}
+		@Override
+		public void rollback() throws IOException {
+			final ExcelConnection conn = get();
+			try {
+				conn.rollback();
+			}
+			finally {
+				// The workbook must be loaded again by the next connection.
+				evict(entry);
+			}
+		}
+		@Override
+		public void close() throws IOException {
+			if (entry != null) {
+				final Entry e = entry;
+				entry = null;
+				release(e);
+			}
+		}
+	}
+}
@@ -21,7 +21,9 @@ import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.LinkedHashSet;
 import java.util.Properties;
+import java.util.Set;
 
 import ilog.concert.IloException;
 import ilog.opl.IloOplModel;
@@ -30,7 +32,9 @@ import ilog.opl.dbsupport.DataBaseDataHandler;
 import ilog.opl.dbsupport.DataBaseDataHandler.ConnectionInfo;
 import ilog.opl.externaldata.DataConnection;
 import ilog.opl.externaldata.InputRowIterator;
+import ilog.opl.externaldata.Options;
 import ilog.opl.externaldata.OutputRowIterator;
+import ilog.opl.externaldata.RowBlock;
 import ilog.opl.externaldata.TupleIO;
 
 public class JdbcConnection implements DataConnection {
@@ -65,23 +69,111 @@ public class JdbcConnection implements DataConnection {
 		throw new IOException(e);
 	}
 	
+	/** Read rows from the result set of a query.
+	 * The query is executed with a forward-only, read-only cursor. The fetch size (number
+	 * of rows transferred per round trip) can be configured. Some drivers (for example
+	 * PostgreSQL) only use cursors and stream results if the connection is not in
+	 * auto-commit mode. For these, auto-commit can be disabled for the duration of the query.
+	 * A query can be executed from a {@link PreparedStatement} that is returned to a
+	 * {@link StatementCache} when the iterator is closed.
+	 */
 	public static class InputStatement implements InputRowIterator {
 		private Statement stmt;
+		/** The cache to which {@link #stmt} is returned on close (if any). */
+		private StatementCache cache = null;
+		/** The key of {@link #stmt} in {@link #cache}. */
+		private String sql = null;
 		private ResultSet rs;
 		private boolean ok = true;
 		private int columns = -1;
+		/** The connection on which auto-commit was disabled by us (if any). */
+		private Connection restoreAutoCommit = null;
 		public InputStatement(Connection conn, String stmt) throws SQLException {
-			Statement s = conn.createStatement();
+			this(conn, stmt, DEFAULT_FETCH_SIZE, false);
+		}
+		/** Execute a query.
+		 * @param conn      The connection on which to execute the query.
+		 * @param stmt      The SQL query.
+		 * @param fetchSize The number of rows to fetch per round trip (non-positive for driver default).
+		 * @param cursor    If <code>true</code> then auto-commit is disabled on <code>conn</code>
+		 *                  until this iterator is closed.
+		 * @throws SQLException if the query cannot be executed.
+		 */
+		public InputStatement(Connection conn, String stmt, int fetchSize, boolean cursor) throws SQLException {
+			Statement s = null;
+			boolean success = false;
 			try {
+				if (cursor && conn.getAutoCommit()) {
+					conn.setAutoCommit(false);
+					restoreAutoCommit = conn;
+				}
+				s = conn.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+				if (fetchSize > 0)
+					s.setFetchSize(fetchSize);
 				rs = s.executeQuery(stmt);
 				this.stmt = s;
-				s = null;
-				traceln("JdbcConnection.InputStatememt(" + stmt + "): " + rs.getMetaData().getColumnCount() + " columns");
+				traceln("JdbcConnection.InputStatememt(" + stmt + "): " + rs.getMetaData().getColumnCount() + " columns, fetchSize=" + fetchSize + ", cursor=" + cursor);
+				success = true;
 			}
 			finally {
+				if (!success)
+					abort(s);
+			}
+		}
+		/** Execute a prepared query whose parameters are already bound.
+		 * @param stmt      The query. This iterator takes ownership of it.
+		 * @param cache     If not <code>null</code> then <code>stmt</code> is returned to this cache
+		 *                  on close instead of being closed.
+		 * @param sql       The SQL text of <code>stmt</code>, the key in <code>cache</code>.
+		 * @param fetchSize The number of rows to fetch per round trip (non-positive for driver default).
+		 * @param cursor    If <code>true</code> then auto-commit is disabled on the statement's
+		 *                  connection until this iterator is closed.
+		 * @throws SQLException if the query cannot be executed.
+		 */
+		InputStatement(PreparedStatement stmt, StatementCache cache, String sql, int fetchSize, boolean cursor) throws SQLException {
+			boolean success = false;
+			try {
+				final Connection conn = stmt.getConnection();
+				if (cursor && conn.getAutoCommit()) {
+					conn.setAutoCommit(false);
+					restoreAutoCommit = conn;
+				}
+				stmt.setFetchSize(fetchSize > 0 ? fetchSize : 0);
+				rs = stmt.executeQuery();
+				this.stmt = stmt;
+				traceln("JdbcConnection.InputStatememt(" + sql + "): " + rs.getMetaData().getColumnCount() + " columns, fetchSize=" + fetchSize + ", cursor=" + cursor + ", prepared");
+				this.cache = cache;
+				this.sql = sql;
+				success = true;
+			}
+			finally {
+				// The statement may be in an undefined state, so do not return it to the cache.
+				if (!success)
+					abort(stmt);
+			}
+		}
+		/** Clean up after construction failed.
+		 * Closes <code>s</code> (if not <code>null</code>) and restores auto-commit mode.
+		 */
+		private void abort(Statement s) throws SQLException {
+			this.stmt = null;
+			rs = null;
+			try {
 				if (s != null)
 					s.close();
 			}
+			finally {
+				endCursor();
+			}
+		}
+		/** Restore auto-commit mode if we changed it. */
+		private void endCursor() throws SQLException {
+			final Connection c = restoreAutoCommit;
+			restoreAutoCommit = null;
+			if (c != null) {
+				// Ends the (read-only) transaction.
+				c.setAutoCommit(true);
+			}
 		}
 		@Override
 		public int getInt(int index) throws IOException {
@@ -127,6 +219,35 @@ public class JdbcConnection implements DataConnection {
 			}
 		}
 		@Override
+		public int nextRows(RowBlock block) throws IOException {
+			block.clear();
+			if (!ok)
+				return 0;
+			final int slots = block.getSlotCount();
+			final int[] columns = block.columns;
+			final RowBlock.Kind[] kinds = block.kinds;
+			try {
+				while (block.size < block.capacity) {
+					ok = rs.next();
+					if (!ok)
+						break;
+					final int row = block.size;
+					for (int s = 0; s < slots; ++s) {
+						switch (kinds[s]) {
+						case INT: block.ints[s][row] = rs.getInt(columns[s] + 1); break;
+						case NUM: block.nums[s][row] = rs.getDouble(columns[s] + 1); break;
+						case STR: block.strings[s][row] = rs.getString(columns[s] + 1); break;
+						}
+					}
+					++block.size;
+				}
+			}
+			catch (SQLException e) {
+				wrapException(e);
+			}
+			return block.size;
+		}
+		@Override
 		public int getColumnCount() throws IOException {
 			try {
 				if (columns < 0)
@@ -145,10 +266,19 @@ public class JdbcConnection implements DataConnection {
 			final ResultSet r = rs;
 			rs = null;
 			try {
-				if (r != null)
-					r.close();
-				if (s != null)
-					s.close();
+				try {
+					if (r != null)
+						r.close();
+					if (s != null) {
+						if (cache != null)
+							cache.give(sql, (PreparedStatement)s);
+						else
+							s.close();
+					}
+				}
+				finally {
+					endCursor();
+				}
 			}
 			catch (SQLException e) {
 				wrapException(e);
@@ -182,16 +312,49 @@ public class JdbcConnection implements DataConnection {
 		}
 		
 	}
+	/** Write rows with a prepared statement.
+	 * Rows are collected in a batch that is sent to the database whenever it reaches
+	 * {@link #OPTION_BATCH_ROWS} rows or (approximately) {@link #OPTION_BATCH_BYTES} bytes.
+	 * This keeps memory consumption in the driver bounded and allows the database to
+	 * process rows while we are still producing them.
+	 */
 	public static class OutputStatement implements OutputRowIterator {
 		private PreparedStatement stmt;
+		/** Maximum number of rows in a batch (non-positive for unlimited). */
+		private final int batchRows;
+		/** Maximum estimated number of bytes in a batch (non-positive for unlimited). */
+		private final long batchBytes;
+		/** Number of rows in the current batch. */
+		private int pendingRows = 0;
+		/** Estimated number of bytes in the current row and batch. */
+		private long pendingBytes = 0;
+		/** Total number of rows written. */
+		private long rows = 0;
+		/** Number of batches sent to the database. */
+		private int flushes = 0;
+		/** Total time (in nanoseconds) spent in sending batches. */
+		private long flushNanos = 0;
 		public OutputStatement(Connection conn, String sql) throws SQLException {
+			this(conn, sql, DEFAULT_BATCH_ROWS, DEFAULT_BATCH_BYTES);
+		}
+		/** Create a new statement.
+		 * @param conn       The connection on which to create the statement.
+		 * @param sql        The SQL command to execute for each row.
+		 * @param batchRows  Flush after that many rows (non-positive for unlimited).
+		 * @param batchBytes Flush after that many estimated bytes (non-positive for unlimited).
+		 * @throws SQLException if the statement cannot be prepared.
+		 */
+		public OutputStatement(Connection conn, String sql, int batchRows, long batchBytes) throws SQLException {
 			stmt = conn.prepareStatement(sql);
-			traceln("JdbcConnection.OutputStatement(" + sql + ")");
+			this.batchRows = batchRows;
+			this.batchBytes = batchBytes;
+			traceln("JdbcConnection.OutputStatement(" + sql + "): batchRows=" + batchRows + ", batchBytes=" + batchBytes);
 		}
 		@Override
 		public void setInt(int index, int value) throws IOException {
 			try {
 				stmt.setInt(index + 1, value);
+				pendingBytes += 4;
 			}
 			catch (SQLException e) {
 				wrapException(e);
@@ -201,6 +364,7 @@ public class JdbcConnection implements DataConnection {
 		public void setDouble(int index, double value) throws IOException {
 			try {
 				stmt.setDouble(index + 1, value);
+				pendingBytes += 8;
 			}
 			catch (SQLException e) {
 				wrapException(e);
@@ -210,6 +374,7 @@ public class JdbcConnection implements DataConnection {
 		public void setString(int index, String value) throws IOException {
 			try {
 				stmt.setString(index + 1, value);
+				pendingBytes += value == null ? 0 : 2 * value.length();
 			}
 			catch (SQLException e) {
 				wrapException(e);
@@ -219,20 +384,81 @@ public class JdbcConnection implements DataConnection {
 		public void completeRow() throws IOException {
 			try {
 				stmt.addBatch();
+				++pendingRows;
+				++rows;
+				if ((batchRows > 0 && pendingRows >= batchRows) ||
+				    (batchBytes > 0 && pendingBytes >= batchBytes))
+					flush();
+			}
+			catch (SQLException e) {
+				wrapException(e);
+			}
+		}
+		@Override
+		public void writeRows(RowBlock block) throws IOException {
+			final int slots = block.getSlotCount();
+			final int[] columns = block.columns;
+			final RowBlock.Kind[] kinds = block.kinds;
+			try {
+				for (int row = 0; row < block.size; ++row) {
+					for (int s = 0; s < slots; ++s) {
+						switch (kinds[s]) {
+						case INT:
+							stmt.setInt(columns[s] + 1, block.ints[s][row]);
+							pendingBytes += 4;
+							break;
+						case NUM:
+							stmt.setDouble(columns[s] + 1, block.nums[s][row]);
+							pendingBytes += 8;
+							break;
+						case STR:
+							final String value = block.strings[s][row];
+							stmt.setString(columns[s] + 1, value);
+							pendingBytes += value == null ? 0 : 2 * value.length();
+							break;
+						}
+					}
+					stmt.addBatch();
+					++pendingRows;
+					++rows;
+					if ((batchRows > 0 && pendingRows >= batchRows) ||
+					    (batchBytes > 0 && pendingBytes >= batchBytes))
+						flush();
+				}
 			}
 			catch (SQLException e) {
 				wrapException(e);
 			}
 		}
+		/** Send the current batch to the database. */
+		private void flush() throws SQLException {
+			if (pendingRows == 0)
+				return;
+			final long start = System.nanoTime();
+			stmt.executeBatch(); /** TODO: Check the return value? */
+			final long elapsed = System.nanoTime() - start;
+			flushNanos += elapsed;
+			++flushes;
+			traceln("JdbcConnection.OutputStatement: flushed " + pendingRows + " rows in " + (elapsed / 1000000) + "ms");
+			pendingRows = 0;
+			pendingBytes = 0;
+		}
 		@Override
 		public void commit() throws IOException {
 			try {
-				stmt.executeBatch(); /** TODO: Check the return value? */
+				flush();
+				traceln("JdbcConnection.OutputStatement: wrote " + rows + " rows in " + flushes + " batches, " + (flushNanos / 1000000) + "ms in executeBatch()");
 			}
 			catch (SQLException e) {
 				wrapException(e);
 			}
 		}
+		/** Get the number of rows completed so far. */
+		public long getRowCount() { return rows; }
+		/** Get the number of batches sent to the database so far. */
+		public int getFlushCount() { return flushes; }
+		/** Get the total time (in nanoseconds) spent in sending batches so far. */
+		public long getFlushNanos() { return flushNanos; }
 		@Override
 		public void close() throws IOException {
 			final PreparedStatement s = stmt;
@@ -248,49 +474,200 @@ public class JdbcConnection implements DataConnection {
 		}
 	}
 	
+	/** Option for the maximum number of rows sent to the database in one batch. */
+	public static final String OPTION_BATCH_ROWS = "batchRows";
+	/** Option for the maximum estimated number of bytes sent to the database in one batch. */
+	public static final String OPTION_BATCH_BYTES = "batchBytes";
+	/** Option to publish all elements of a connection in a single transaction.
+	 * If this is <code>true</code> then a connection opened for writing is switched to
+	 * manual commit mode before the extra commands are executed. All changes are committed
+	 * at the end of the publish round or rolled back if anything fails.
+	 */
+	public static final String OPTION_TRANSACTION = "transaction";
+	/** Option for the number of rows fetched from the database per round trip when reading. */
+	public static final String OPTION_FETCH_SIZE = "fetchSize";
+	/** Option to disable auto-commit while reading.
+	 * Some drivers (for example PostgreSQL) only stream result sets with a cursor if
+	 * auto-commit is disabled. Otherwise they read the whole result into memory.
+	 */
+	public static final String OPTION_CURSOR = "cursor";
+	/** Option for the number of prepared queries that are cached per connection.
+	 * Queries are executed as prepared statements that are kept open for reuse, keyed
+	 * by their SQL text. A value of 0 closes each statement after use.
+	 */
+	public static final String OPTION_STATEMENT_CACHE = "statementCache";
+	/** Default for {@link #OPTION_STATEMENT_CACHE}. */
+	public static final int DEFAULT_STATEMENT_CACHE = 32;
+	/** Option for the maximum number of pooled connections per connection string.
+	 * Connections are taken from a {@link JdbcConnectionPool} and returned to it when they
+	 * are closed. A value of 0 disables pooling.
+	 */
+	public static final String OPTION_POOL = "pool";
+	/** Option for the time (in seconds) after which idle pooled connections are closed. */
+	public static final String OPTION_POOL_IDLE_TIMEOUT = "poolIdleTimeout";
+	/** Default for {@link #OPTION_FETCH_SIZE} (use the driver's default). */
+	public static final int DEFAULT_FETCH_SIZE = 0;
+	/** Default for {@link #OPTION_BATCH_ROWS}. */
+	public static final int DEFAULT_BATCH_ROWS = 10000;
+	/** Default for {@link #OPTION_BATCH_BYTES} (unlimited). */
+	public static final long DEFAULT_BATCH_BYTES = 0;
+
 	private Connection conn;
+	/** Options that apply to all statements created by this connection. */
+	private final Options options;
+	/** The pool to which {@link #conn} is returned on close, <code>null</code> if it is not pooled. */
+	private final JdbcConnectionPool pool;
+	/** Prepared queries, created on first use. Owned by {@link #pool} if the connection is pooled. */
+	private StatementCache cache = null;
 	
 	public JdbcConnection(String connstr) throws SQLException {
 		conn = DriverManager.getConnection(connstr);
+		options = Options.EMPTY;
+		pool = null;
 	}
 	
 	public JdbcConnection(String connstr, String username, String password) throws SQLException {
 		conn = DriverManager.getConnection(connstr, username, password);
+		options = Options.EMPTY;
+		pool = null;
 	}
 	
 	public JdbcConnection(String connstr, Properties info) throws SQLException {
 		conn = DriverManager.getConnection(connstr, info);
+		options = Options.EMPTY;
+		pool = null;
 	}
 	/**
 	 * <b>Attention</b>: the newly created instance takes ownership of the passed connection!
 	 * @param conn
 	 */
 	public JdbcConnection(Connection conn) {
+		this(conn, Options.EMPTY);
+	}
+	/**
+	 * <b>Attention</b>: the newly created instance takes ownership of the passed connection!
+	 * @param conn
+	 * @param options Options for statements created by this connection. Options given in
+	 *                commands passed to {@link #openInputRows(String)} or {@link #openOutputRows(String)}
+	 *                override these.
+	 */
+	public JdbcConnection(Connection conn, Options options) {
+		this(conn, options, null);
+	}
+	/**
+	 * <b>Attention</b>: the newly created instance takes ownership of the passed connection!
+	 * @param conn
+	 * @param options Options for statements created by this connection.
+	 * @param pool    If not <code>null</code> then <code>conn</code> was acquired from this
+	 *                pool and is returned to it instead of being closed.
+	 */
+	public JdbcConnection(Connection conn, Options options, JdbcConnectionPool pool) {
 		this.conn = conn;
+		this.options = options;
+		this.pool = pool;
 	}
 	
 	
 	@Override
 	public InputRowIterator openInputRows(String command) throws IOException {
+		return openInputRows(command, new Object[0]);
+	}
+	/** Execute a query as a prepared statement.
+	 * Statements are taken from and returned to this connection's statement cache, so
+	 * repeated queries with the same SQL text are only prepared once.
+	 */
+	@Override
+	public InputRowIterator openInputRows(String command, Object[] parameters) throws IOException {
 		traceln("JdbcConnection: openInputRows(" + command + ")");
 		try {
-			return new InputStatement(conn, command);
+			final Options opts = options.with(Options.parse(command));
+			final String sql = opts.getRemainder();
+			final int cacheSize = opts.getInt(OPTION_STATEMENT_CACHE, DEFAULT_STATEMENT_CACHE);
+			final StatementCache statements = cacheSize > 0 ? getStatementCache(cacheSize) : null;
+			PreparedStatement stmt = statements != null ? statements.take(sql) : null;
+			if (stmt == null)
+				stmt = conn.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+			try {
+				stmt.clearParameters();
+				for (int i = 0; i < parameters.length; ++i) {
+					final Object p = parameters[i];
+					if (p instanceof Integer)
+						stmt.setInt(i + 1, ((Integer)p).intValue());
+					else if (p instanceof Double)
+						stmt.setDouble(i + 1, ((Double)p).doubleValue());
+					else if (p instanceof String)
+						stmt.setString(i + 1, (String)p);
+					else
+						stmt.setObject(i + 1, p);
+				}
+			}
+			catch (SQLException e) {
+				stmt.close();
+				throw e;
+			}
+			return new InputStatement(stmt, statements, sql,
+			                          opts.getInt(OPTION_FETCH_SIZE, DEFAULT_FETCH_SIZE),
+			                          opts.getBoolean(OPTION_CURSOR, false));
 		}
 		catch (SQLException e) {
 			wrapException(e);
 			return null; // not reached
 		}
+		catch (IllegalArgumentException e) {
+			wrapException(e);
+			return null; // not reached
+		}
+	}
+	/** Get the statement cache for {@link #conn}. */
+	private StatementCache getStatementCache(int capacity) {
+		if (cache == null)
+			cache = pool != null ? pool.getStatementCache(conn, capacity) : new StatementCache(capacity);
+		else
+			cache.setCapacity(capacity);
+		return cache;
 	}
 	@Override
 	public OutputRowIterator openOutputRows(String command) throws IOException {
 		traceln("JdbcConnection: openOutputRows(" + command + ")");
 		try {
-			return new OutputStatement(conn, command);
+			final Options opts = options.with(Options.parse(command));
+			return new OutputStatement(conn, opts.getRemainder(),
+			                           opts.getInt(OPTION_BATCH_ROWS, DEFAULT_BATCH_ROWS),
+			                           opts.getLong(OPTION_BATCH_BYTES, DEFAULT_BATCH_BYTES));
 		}
 		catch (SQLException e) {
 			wrapException(e);
 			return null; // not reached
 		}
+		catch (IllegalArgumentException e) {
+			wrapException(e);
+			return null; // not reached
+		}
+	}
+
+	@Override
+	public void commit() throws IOException {
+		try {
+			if (conn != null && !conn.getAutoCommit()) {
+				traceln("JdbcConnection: commit()");
+				conn.commit();
+			}
+		}
+		catch (SQLException e) {
+			wrapException(e);
+		}
+	}
+	@Override
+	public void rollback() throws IOException {
+		try {
+			if (conn != null && !conn.getAutoCommit()) {
+				traceln("JdbcConnection: rollback()");
+				conn.rollback();
+			}
+		}
+		catch (SQLException e) {
+			wrapException(e);
+		}
 	}
 
 	@Override
@@ -298,6 +675,16 @@ public class JdbcConnection implements DataConnection {
 		final Connection c = conn;
 		conn = null;
 		if (c != null) {
+			if (cache != null) {
+				traceln("JdbcConnection: " + cache.getStatistics());
+				if (pool == null)
+					cache.close();
+				cache = null;
+			}
+			if (pool != null) {
+				pool.release(c);
+				return;
+			}
 			try { c.close(); }
 			catch (SQLException e) { wrapException(e); }
 		}
@@ -312,13 +699,27 @@ public class JdbcConnection implements DataConnection {
 	public static void register(String prefix, IloOplModel model) {
 		System.err.println("Registering " + prefix);
 		new DataBaseDataHandler(prefix, model, new DataBaseDataHandler.ConnectionFactory() {
+			/** Pools used by this handler, for statistics. */
+			private final Set<JdbcConnectionPool> pools = new LinkedHashSet<JdbcConnectionPool>();
 			@Override
 			public DataConnection newConnection(ConnectionInfo info, boolean write) throws IOException {
 				try {
-					Connection c = DriverManager.getConnection(info.connstr);
+					final JdbcConnectionPool pool = getPool(info);
+					if (pool != null) {
+						synchronized (pools) {
+							pools.add(pool);
+						}
+					}
+					Connection c = pool != null ? pool.acquire() : DriverManager.getConnection(info.connstr);
 					try {
+						if (write && info.options.getBoolean(OPTION_TRANSACTION, false)) {
+							JdbcConnection.traceln("transactional publish for " + info.name);
+							c.setAutoCommit(false);
+						}
+						// Extra commands are executed each time a connection is handed out for
+						// writing, no matter whether it is new or comes from the pool.
 						if (write) {
-							for (String sql : info.extra.split(";")) {
+							for (String sql : info.options.getRemainder().split(";")) {
 								final String cmd = sql.trim();
 								if (cmd.length() > 0) {
 									JdbcConnection.traceln("execute >" + cmd + "<");
@@ -332,18 +733,63 @@ public class JdbcConnection implements DataConnection {
 								}
 							}
 						}
-						JdbcConnection jdbc = new JdbcConnection(c);
+						JdbcConnection jdbc = new JdbcConnection(c, info.options, pool);
 						c = null;
 						return jdbc;
 					}
 					finally {
-						if (c != null)
-							c.close();
+						if (c != null) {
+							if (pool != null)
+								pool.release(c);
+							else
+								c.close();
+						}
 					}
 				}
 				catch (SQLException e) {
 					throw new IOException(e);
 				}
+				catch (IllegalArgumentException e) {
+					throw new IOException(e);
+				}
+			}
+			/** Get the pool for <code>info</code>, <code>null</code> if pooling is disabled.
+			 * Without an explicit <code>pool</code> option the pool keeps whatever size was
+			 * already requested for the same connection string.
+			 */
+			private JdbcConnectionPool getPool(ConnectionInfo info) {
+				final long idleTimeout = info.options.getLong(OPTION_POOL_IDLE_TIMEOUT, JdbcConnectionPool.DEFAULT_IDLE_TIMEOUT);
+				if (!info.options.contains(OPTION_POOL))
+					return JdbcConnectionPool.get(info.connstr, idleTimeout);
+				final int size = info.options.getInt(OPTION_POOL, JdbcConnectionPool.DEFAULT_MAX_SIZE);
+				return size > 0 ? JdbcConnectionPool.get(info.connstr, size, idleTimeout) : null;
+			}
+			@Override
+			public int getMaxWriters(ConnectionInfo info) {
+				// With transactions, the extra commands may hold locks until the commit at the
+				// end of the round, which would block writers on other connections.
+				if (info.options.getBoolean(OPTION_TRANSACTION, false) && info.options.getRemainder().trim().length() > 0)
+					return 1;
+				return Integer.MAX_VALUE;
+			}
+			@Override
+			public int getMaxSharedWriters(ConnectionInfo info) throws IOException {
+				// More writers than pooled connections would only wait for each other.
+				try {
+					final JdbcConnectionPool pool = getPool(info);
+					return pool != null ? pool.getMaxSize() : Integer.MAX_VALUE;
+				}
+				catch (IllegalArgumentException e) {
+					throw new IOException(e);
+				}
+			}
+			@Override
+			public void close() throws IOException {
+				// Pooled connections are kept for the next round, only report statistics.
+				synchronized (pools) {
+					for (JdbcConnectionPool pool : pools)
+						JdbcConnection.traceln("JdbcConnectionPool: " + pool.getStatistics());
+				}
 			}
 		});
 		System.err.println("Prefix " + prefix + " registered for JDBC");
@@ -0,0 +1,401 @@
+//   Copyright 2020 IBM Corporation
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+package ilog.opl.externaldata.jdbc;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/** A bounded pool of JDBC connections for one connection string.
+ * Pools are shared by all data handlers and data sources in the process, so connections
+ * survive the end of a read phase, a publish round or a model and can be reused by the
+ * next one. Connections are handed out most-recently-used first. A connection that was
+ * idle for a while is validated with {@link Connection#isValid(int)} before it is handed
+ * out again. Connections that are idle for longer than the idle timeout are closed by a
+ * background thread. All pools are closed when the JVM exits.
+ */
+public final class JdbcConnectionPool {
+	/** Default maximum number of connections in a pool. */
+	public static final int DEFAULT_MAX_SIZE = 4;
+	/** Default time (in seconds) after which idle connections are closed. */
+	public static final long DEFAULT_IDLE_TIMEOUT = 300;
+	/** Connections that were idle for at least that many milliseconds are validated before use. */
+	private static final long VALIDATE_AFTER_MILLIS = 1000;
+	/** Timeout (in seconds) for validating a connection. */
+	private static final int VALIDATION_TIMEOUT = 5;
+	/** Maximum time (in milliseconds) to wait for a connection if the pool is exhausted. */
+	private static final long ACQUIRE_TIMEOUT_MILLIS = 60000;
+
+	/** All pools by connection string. */
+	private static final Map<String, JdbcConnectionPool> pools = new HashMap<String, JdbcConnectionPool>();
+	/** Thread that evicts idle connections, created on first use. */
+	private static ScheduledExecutorService evictor = null;
+
+	/** A connection that is not in use. */
+	private static final class Idle {
+		public final Connection conn;
+		public final long since;
+		public Idle(Connection conn, long since) {
+			this.conn = conn;
+			this.since = since;
+		}
+	}
+
+	private final String connstr;
+	private int maxSize;
+	/** Whether {@link #maxSize} was requested explicitly rather than being the default. */
+	private boolean sized;
+	private long idleTimeoutMillis;
+	/** Connections that are not in use, most recently used first. */
+	private final ArrayDeque<Idle> idle = new ArrayDeque<Idle>();
+	/** Number of connections that are currently handed out (or being created). */
+	private int borrowed = 0;
+	private boolean closed = false;
+	/** Prepared statements of the connections in this pool. */
+	private final Map<Connection, StatementCache> caches = new IdentityHashMap<Connection, StatementCache>();
+
+	/* Statistics. */
+	private long created = 0;
+	private long reused = 0;
+	private long invalid = 0;
+	private long evicted = 0;
+	private long waits = 0;
+	private long waitNanos = 0;
+
+	private JdbcConnectionPool(String connstr, int maxSize, boolean sized, long idleTimeoutMillis) {
+		this.connstr = connstr;
+		this.maxSize = maxSize;
+		this.sized = sized;
+		this.idleTimeoutMillis = idleTimeoutMillis;
+	}
+
+	/** Get the pool for <code>connstr</code> with an explicit size, creating it if necessary.
+	 * The size of a pool is fixed by the first request that specifies one. A pool that was
+	 * created with the default size takes the size of the first explicit request.
+	 * If the pool already exists then its idle timeout is updated to the one given here.
+	 * @param connstr     The JDBC connection string.
+	 * @param maxSize     The maximum number of connections (in use or idle).
+	 * @param idleTimeout Time (in seconds) after which idle connections are closed,
+	 *                    non-positive to keep them until the JVM exits.
+	 * @return The pool for <code>connstr</code>.
+	 * @throws IllegalArgumentException if <code>maxSize</code> is invalid or the pool
+	 *                                  already has a different explicit size.
+	 */
+	public static JdbcConnectionPool get(String connstr, int maxSize, long idleTimeout) {
+		if (maxSize < 1)
+			throw new IllegalArgumentException("invalid pool size " + maxSize);
+		return get(connstr, maxSize, true, idleTimeout);
+	}
+
+	/** Get the pool for <code>connstr</code>, creating it with the default size if necessary.
+	 * If the pool already exists then it keeps its size and its idle timeout is updated
+	 * to the one given here.
+	 * @param connstr     The JDBC connection string.
+	 * @param idleTimeout Time (in seconds) after which idle connections are closed,
+	 *                    non-positive to keep them until the JVM exits.
+	 * @return The pool for <code>connstr</code>.
+	 */
+	public static JdbcConnectionPool get(String connstr, long idleTimeout) {
+		return get(connstr, DEFAULT_MAX_SIZE, false, idleTimeout);
+	}
+
+	private static JdbcConnectionPool get(String connstr, int maxSize, boolean sized, long idleTimeout) {
+		final JdbcConnectionPool pool;
+		synchronized (pools) {
+			JdbcConnectionPool p = pools.get(connstr);
+			if (p == null) {
+				if (pools.isEmpty())
+					startEvictor();
+				p = new JdbcConnectionPool(connstr, maxSize, sized, idleTimeout * 1000);
+				pools.put(connstr, p);
+				JdbcConnection.traceln("JdbcConnectionPool: new pool with " + maxSize + " connections");
+				return p;
+			}
+			pool = p;
+		}
+		synchronized (pool) {
+			if (sized) {
+				if (pool.sized && pool.maxSize != maxSize)
+					throw new IllegalArgumentException("conflicting pool sizes " + pool.maxSize + " and " + maxSize + " for the same connection string");
+				pool.maxSize = maxSize;
+				pool.sized = true;
+			}
+			pool.idleTimeoutMillis = idleTimeout * 1000;
+			pool.notifyAll();
+		}
+		return pool;
+	}
+
+	/** Start the background thread that evicts idle connections and the shutdown hook. */
+	private static void startEvictor() {
+		if (evictor != null)
+			return;
+		evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				final Thread t = new Thread(r, "opldbsupport-pool");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		evictor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				final List<JdbcConnectionPool> all;
+				synchronized (pools) {
+					all = new ArrayList<JdbcConnectionPool>(pools.values());
+				}
+				for (JdbcConnectionPool p : all)
+					p.evictIdle();
+			}
+		}, 10, 10, TimeUnit.SECONDS);
+		Runtime.getRuntime().addShutdownHook(new Thread("opldbsupport-pool-shutdown") {
+			@Override
+			public void run() {
+				closeAll();
+			}
+		});
+	}
+
+	/** Close all pools.
+	 * Connections that are currently in use are closed when they are released.
+	 */
+	public static void closeAll() {
+		final List<JdbcConnectionPool> all;
+		synchronized (pools) {
+			all = new ArrayList<JdbcConnectionPool>(pools.values());
+			pools.clear();
+		}
+		for (JdbcConnectionPool p : all)
+			p.close();
+	}
+
+	/** Get a connection from the pool.
+	 * The connection is in auto-commit mode and must be returned with {@link #release(Connection)}.
+	 * @return A connection to the database.
+	 * @throws SQLException if no connection can be created or the pool remains exhausted
+	 *                      for too long.
+	 */
+	public Connection acquire() throws SQLException {
+		final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ACQUIRE_TIMEOUT_MILLIS);
+		while (true) {
+			Idle candidate = null;
+			synchronized (this) {
+				if (closed)
+					throw new SQLException("connection pool is closed");
+				if (idle.isEmpty() && borrowed >= maxSize) {
+					++waits;
+					final long start = System.nanoTime();
+					try {
+						while (idle.isEmpty() && borrowed >= maxSize && !closed) {
+							final long left = deadline - System.nanoTime();
+							if (left <= 0)
+								throw new SQLException("no connection available after " + ACQUIRE_TIMEOUT_MILLIS + "ms, all " + maxSize + " connections of the pool are in use");
+							TimeUnit.NANOSECONDS.timedWait(this, left);
+						}
+					}
+					catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new SQLException(e);
+					}
+					finally {
+						waitNanos += System.nanoTime() - start;
+					}
+					if (closed)
+						throw new SQLException("connection pool is closed");
+				}
+				candidate = idle.pollFirst();
+				++borrowed;
+			}
+
+			if (candidate == null) {
+				// Create a new connection.
+				Connection c = null;
+				try {
+					c = DriverManager.getConnection(connstr);
+					return c;
+				}
+				finally {
+					synchronized (this) {
+						if (c == null) {
+							--borrowed;
+							notifyAll();
+						}
+						else
+							++created;
+					}
+				}
+			}
+
+			if (System.currentTimeMillis() - candidate.since < VALIDATE_AFTER_MILLIS || isValid(candidate.conn)) {
+				synchronized (this) {
+					++reused;
+				}
+				return candidate.conn;
+			}
+			// The connection is broken, drop it and try again.
+			JdbcConnection.traceln("JdbcConnectionPool: dropping invalid connection");
+			closeQuietly(candidate.conn);
+			synchronized (this) {
+				++invalid;
+				--borrowed;
+				notifyAll();
+			}
+		}
+	}
+
+	/** Test whether <code>c</code> can still be used. */
+	private static boolean isValid(Connection c) {
+		try {
+			return c.isValid(VALIDATION_TIMEOUT);
+		}
+		catch (SQLException e) {
+			return false;
+		}
+	}
+
+	/** Return a connection obtained from {@link #acquire()} to the pool.
+	 * Uncommitted changes are rolled back and auto-commit mode is restored.
+	 * Connections that cannot be reset are closed.
+	 * @param c The connection to return.
+	 */
+	public void release(Connection c) {
+		boolean ok = true;
+		try {
+			if (c.isClosed())
+				ok = false;
+			else if (!c.getAutoCommit()) {
+				c.rollback();
+				c.setAutoCommit(true);
+			}
+		}
+		catch (SQLException e) {
+			ok = false;
+		}
+		synchronized (this) {
+			--borrowed;
+			notifyAll();
+			if (ok && !closed && idle.size() < maxSize) {
+				idle.addFirst(new Idle(c, System.currentTimeMillis()));
+				return;
+			}
+			if (ok)
+				++evicted;
+			else
+				++invalid;
+		}
+		closeQuietly(c);
+	}
+
+	/** Close connections that were idle for longer than the idle timeout. */
+	public void evictIdle() {
+		final List<Connection> expired = new ArrayList<Connection>();
+		synchronized (this) {
+			if (idleTimeoutMillis <= 0)
+				return;
+			final long limit = System.currentTimeMillis() - idleTimeoutMillis;
+			// Least recently used connections are at the end.
+			for (Iterator<Idle> it = idle.descendingIterator(); it.hasNext(); /* nothing */) {
+				final Idle i = it.next();
+				if (i.since > limit)
+					break;
+				it.remove();
+				expired.add(i.conn);
+			}
+			evicted += expired.size();
+		}
+		if (!expired.isEmpty())
+			JdbcConnection.traceln("JdbcConnectionPool: closing " + expired.size() + " idle connections");
+		for (Connection c : expired)
+			closeQuietly(c);
+	}
+
+	/** Close all idle connections and stop pooling.
+	 * Connections that are currently in use are closed when they are released.
+	 */
+	public void close() {
+		final List<Connection> conns = new ArrayList<Connection>();
+		synchronized (this) {
+			closed = true;
+			for (Idle i : idle)
+				conns.add(i.conn);
+			idle.clear();
+			evicted += conns.size();
+			notifyAll();
+		}
+		for (Connection c : conns)
+			closeQuietly(c);
+	}
+
+	private void closeQuietly(Connection c) {
+		final StatementCache cache;
+		synchronized (this) {
+			cache = caches.remove(c);
+		}
+		if (cache != null)
+			cache.close();
+		try {
+			c.close();
+		}
+		catch (SQLException e) {
+			JdbcConnection.traceln("JdbcConnectionPool: failed to close connection: " + e.getMessage());
+		}
+	}
+
+	/** Get the statement cache for <code>c</code>.
+	 * The cache lives as long as the connection, so statements prepared while the
+	 * connection was handed out before can be reused.
+	 * @param c        A connection obtained from {@link #acquire()}.
+	 * @param capacity The maximum number of statements to cache.
+	 * @return The cache for <code>c</code>.
+	 */
+	synchronized StatementCache getStatementCache(Connection c, int capacity) {
+		StatementCache cache = caches.get(c);
+		if (cache == null) {
+			cache = new StatementCache(capacity);
+			caches.put(c, cache);
+		}
+		else
+			cache.setCapacity(capacity);
+		return cache;
+	}
+
+	/** Get a description of the pool's current state and statistics. */
+	public synchronized String getStatistics() {
+		return "pool size " + maxSize + ": " + borrowed + " in use, " + idle.size() + " idle, " +
+			created + " created, " + reused + " reused, " + invalid + " invalid, " + evicted + " evicted, " +
+			waits + " waits (" + TimeUnit.NANOSECONDS.toMillis(waitNanos) + "ms)";
+	}
+	/** Get the maximum number of connections (in use or idle). */
+	public synchronized int getMaxSize() { return maxSize; }
+	/** Get the number of connections that were created so far. */
+	public synchronized long getCreatedCount() { return created; }
+	/** Get the number of times an idle connection was handed out again. */
+	public synchronized long getReusedCount() { return reused; }
+	/** Get the number of connections that were dropped because they were broken. */
+	public synchronized long getInvalidCount() { return invalid; }
+	/** Get the number of healthy connections that were closed by the pool. */
+	public synchronized long getEvictedCount() { return evicted; }
+}
@@ -0,0 +1,93 @@
+//   Copyright 2020 IBM Corporation
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//       http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+package ilog.opl.externaldata.jdbc;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/** Least recently used cache of prepared statements for one connection, keyed by SQL text.
+ * A statement is removed from the cache while it is in use and put back when it is
+ * no longer needed, so the same statement is never executed twice at the same time.
+ * Statements that are evicted from the cache are closed.
+ */
+final class StatementCache {
+	private final LinkedHashMap<String, PreparedStatement> statements;
+	private int capacity;
+	private long hits = 0;
+	private long misses = 0;
+
+	public StatementCache(int capacity) {
+		this.capacity = capacity;
+		this.statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true);
+	}
+
+	/** Change the maximum number of cached statements. */
+	public synchronized void setCapacity(int capacity) {
+		this.capacity = capacity;
+		trim();
+	}
+
+	/** Take the statement for <code>sql</code> out of the cache.
+	 * @return The statement or <code>null</code> if there is none in the cache.
+	 */
+	public synchronized PreparedStatement take(String sql) {
+		final PreparedStatement stmt = statements.remove(sql);
+		if (stmt != null)
+			++hits;
+		else
+			++misses;
+		return stmt;
+	}
+
+	/** Put a statement that is no longer used back into the cache.
+	 * If there already is a statement for <code>sql</code> or the cache is full then a
+	 * statement is closed.
+	 */
+	public synchronized void give(String sql, PreparedStatement stmt) throws SQLException {
+		final PreparedStatement old = statements.put(sql, stmt);
+		if (old != null && old != stmt)
+			old.close();
+		trim();
+	}
+
+	/** Close least recently used statements until the cache is within its capacity. */
+	private void trim() {
+		for (Iterator<Map.Entry<String, PreparedStatement>> it = statements.entrySet().iterator(); it.hasNext() && statements.size() > capacity; /* nothing */) {
+			final PreparedStatement stmt = it.next().getValue();
+			it.remove();
+			try {
+				stmt.close();
+			}
+			catch (SQLException e) {
+				JdbcConnection.traceln("StatementCache: failed to close statement: " + e.getMessage());
+			}
+		}
+	}
+
+	/** Close all cached statements. */
+	public synchronized void close() {
+		final int c = capacity;
+		capacity = 0;
+		trim();
+		capacity = c;
+	}
+
+	/** Get a description of the cache's statistics. */
+	public synchronized String getStatistics() {
+		return statements.size() + " cached statements, " + hits + " hits, " + misses + " misses";
+	}
+}